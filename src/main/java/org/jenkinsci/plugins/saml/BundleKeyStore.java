@@ -10,15 +10,18 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.UnrecoverableKeyException;
+import java.security.spec.ECGenParameterSpec;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Base64;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Locale;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 import org.apache.commons.lang.math.NumberUtils;
@@ -36,6 +39,7 @@ import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
 import hudson.XmlFile;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
@@ -47,6 +51,8 @@ import static java.util.logging.Level.WARNING;
  * the plugin generate an automatic keystore or it is not possible uses a keystore bundle on the plugin.
  * The generated key is valid for a day, when expires it is generated a new one on the same keystore.
  * A new key store is created when you restart Jenkins or if is not possible to access to the created.
+ * The algorithm of the generated key is set with the {@link #KEY_ALGORITHM_PROPERTY} property, a new key is generated
+ * when it changes.
  *
  * @see <a href="http://www.pac4j.org/1.9.x/docs/clients/saml.html">pac4j - Authentication mechanisms: SAML</a>
  */
@@ -66,6 +72,112 @@ public class BundleKeyStore {
     public static final String SAML_JENKINS_KEYSTORE_JKS = "saml-jenkins-keystore.jks";
     public static final int KEY_SIZE = 2048;
     public static final String CN_SAML_JENKINS = "cn=SAML-jenkins";
+    /**
+     * property to set the algorithm of the generated key, RSA_2048, RSA_3072, RSA_4096, EC_P256 or EC_P384.
+     * -Dorg.jenkinsci.plugins.saml.BundleKeyStore.keyAlgorithm=ALGORITHM
+     */
+    public static final String KEY_ALGORITHM_PROPERTY = BundleKeyStore.class.getName() + ".keyAlgorithm";
+    public static final KeyAlgorithm KEY_ALGORITHM = KeyAlgorithm.parse(System.getProperty(KEY_ALGORITHM_PROPERTY));
+
+    /**
+     * Algorithms of the generated key. The EC keys make the signatures cheaper than the RSA keys and the IdP has
+     * to support ECDSA signatures. The EC keys are for signing only, the IdP must not encrypt the assertions with
+     * them, use a RSA key to receive encrypted assertions.
+     */
+    public enum KeyAlgorithm {
+        RSA_2048(KEY_ALG, KEY_SIZE, null, SIGNATURE_ALGORITHM, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+                 SignatureConstants.ALGO_ID_DIGEST_SHA256),
+        RSA_3072(KEY_ALG, 3072, null, SIGNATURE_ALGORITHM, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+                 SignatureConstants.ALGO_ID_DIGEST_SHA256),
+        RSA_4096(KEY_ALG, 4096, null, SIGNATURE_ALGORITHM, SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256,
+                 SignatureConstants.ALGO_ID_DIGEST_SHA256),
+        EC_P256("EC", 256, "secp256r1", "SHA256withECDSA", SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA256,
+                SignatureConstants.ALGO_ID_DIGEST_SHA256),
+        EC_P384("EC", 384, "secp384r1", "SHA384withECDSA", SignatureConstants.ALGO_ID_SIGNATURE_ECDSA_SHA384,
+                SignatureConstants.ALGO_ID_DIGEST_SHA384);
+
+        private final String keyAlgorithm;
+        private final int keySize;
+        private final String curve;
+        private final String certificateSignatureAlgorithm;
+        private final String signatureAlgorithm;
+        private final String digestMethod;
+
+        KeyAlgorithm(String keyAlgorithm, int keySize, String curve, String certificateSignatureAlgorithm,
+                     String signatureAlgorithm, String digestMethod) {
+            this.keyAlgorithm = keyAlgorithm;
+            this.keySize = keySize;
+            this.curve = curve;
+            this.certificateSignatureAlgorithm = certificateSignatureAlgorithm;
+            this.signatureAlgorithm = signatureAlgorithm;
+            this.digestMethod = digestMethod;
+        }
+
+        /**
+         * @return JCA name of the key algorithm.
+         */
+        public String getKeyAlgorithm() {
+            return keyAlgorithm;
+        }
+
+        /**
+         * @return size of the key in bits.
+         */
+        public int getKeySize() {
+            return keySize;
+        }
+
+        /**
+         * @return JCA name of the algorithm that signs the certificate.
+         */
+        public String getCertificateSignatureAlgorithm() {
+            return certificateSignatureAlgorithm;
+        }
+
+        /**
+         * @return XML Signature URI of the algorithm that signs the SAML messages.
+         */
+        public String getSignatureAlgorithm() {
+            return signatureAlgorithm;
+        }
+
+        /**
+         * @return XML Signature URI of the digest of the signed references.
+         */
+        public String getDigestMethod() {
+            return digestMethod;
+        }
+
+        /**
+         * @return a new key pair of this algorithm.
+         * @throws NoSuchAlgorithmException @see NoSuchAlgorithmException
+         * @throws NoSuchProviderException @see NoSuchProviderException
+         * @throws InvalidAlgorithmParameterException @see InvalidAlgorithmParameterException
+         */
+        KeyPair generate() throws NoSuchAlgorithmException, NoSuchProviderException,
+                InvalidAlgorithmParameterException {
+            KeyPairGenerator keyGen = KeyPairGenerator.getInstance(keyAlgorithm, PROVIDER);
+            SecureRandom prng = new SecureRandom();
+            if (curve != null) {
+                keyGen.initialize(new ECGenParameterSpec(curve), prng);
+            } else {
+                keyGen.initialize(keySize, prng);
+            }
+            return keyGen.generateKeyPair();
+        }
+
+        static KeyAlgorithm parse(String value) {
+            if (value == null || value.isBlank()) {
+                return RSA_2048;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                LOG.warning("Unknown " + KEY_ALGORITHM_PROPERTY + " " + value + ", the keys are " + RSA_2048);
+                return RSA_2048;
+            }
+        }
+    }
 
     private String keystorePath = PAC4J_DEMO_KEYSTORE;
     private Secret ksPassword =  Secret.fromString(PAC4J_DEMO_PASSWD);
@@ -73,7 +185,9 @@ public class BundleKeyStore {
     private String ksPkAlias = PAC4J_DEMO_ALIAS;
     private Date dateValidity;
     private File keystore;
+    private String keyAlgorithm;
     private transient XmlFile config = null;
+    private transient boolean failed;
 
     public BundleKeyStore(){
         Jenkins jenkins = Jenkins.get();
@@ -108,11 +222,14 @@ public class BundleKeyStore {
             }
             ksPkAlias = DEFAULT_KEY_ALIAS;
             KeyStore ks = loadKeyStore(keystore, ksPassword.getPlainText());
-            KeyPair keypair = generate();
-            X509Certificate[] chain = createCertificateChain(keypair);
+            KeyAlgorithm algorithm = KEY_ALGORITHM;
+            KeyPair keypair = algorithm.generate();
+            X509Certificate[] chain = createCertificateChain(keypair, algorithm);
             ks.setKeyEntry(ksPkAlias, keypair.getPrivate(), ksPkPassword.getPlainText().toCharArray(), chain);
             saveKeyStore(keystore, ks, ksPassword.getPlainText());
-            LOG.warning("Using automatic generated keystore : " + keystorePath);
+            keyAlgorithm = algorithm.name();
+            failed = false;
+            LOG.warning("Using automatic generated keystore : " + keystorePath + " with a " + algorithm + " key");
             try {
                 config.write(this);
             } catch (IOException e) {
@@ -127,6 +244,8 @@ public class BundleKeyStore {
             ksPkPassword =  Secret.fromString(PAC4J_DEMO_PASSWD);
             keystorePath = PAC4J_DEMO_KEYSTORE;
             ksPkAlias = PAC4J_DEMO_ALIAS;
+            keyAlgorithm = null;
+            failed = true;
         }
     }
 
@@ -134,16 +253,17 @@ public class BundleKeyStore {
      * create an array with the certificate created from the key pair.
      *
      * @param keypair key pair origin.
+     * @param algorithm algorithm of the key pair.
      * @return an array of x509 certificates.
      * @throws IOException              @see IOException
      * @throws CertificateException     @see CertificateException
      * @throws NoSuchAlgorithmException @see NoSuchAlgorithmException
      */
-    private X509Certificate[] createCertificateChain(KeyPair keypair)
+    private X509Certificate[] createCertificateChain(KeyPair keypair, KeyAlgorithm algorithm)
             throws IOException, CertificateException, NoSuchAlgorithmException, OperatorCreationException {
         X509Certificate[] chain = new X509Certificate[1];
         long validity = NumberUtils.toLong(System.getProperty(KEY_VALIDITY_PROPERTY), KEY_VALIDITY);
-        chain[0] = generateCertificate(new Date(), TimeUnit.DAYS.toSeconds(validity), keypair);
+        chain[0] = generateCertificate(new Date(), TimeUnit.DAYS.toSeconds(validity), keypair, algorithm);
         return chain;
     }
 
@@ -218,32 +338,20 @@ public class BundleKeyStore {
         return Base64.getEncoder().encodeToString(bytes);
     }
 
-    /**
-     * generate an RSA key pair.
-     *
-     * @return an RSA key pair.
-     * @throws NoSuchAlgorithmException @see NoSuchAlgorithmException
-     */
-    private KeyPair generate() throws NoSuchAlgorithmException, NoSuchProviderException {
-        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(KEY_ALG, PROVIDER);
-        SecureRandom prng = new SecureRandom();
-        keyGen.initialize(BundleKeyStore.KEY_SIZE, prng);
-        return keyGen.generateKeyPair();
-    }
-
     /**
      * generate a x509 certificate from a key pair.
      *
      * @param notBefore date when the validity begins.
      * @param validity  number of days that it is valid.
      * @param keyPair   key pair to generate the certificate.
+     * @param algorithm algorithm of the key pair.
      * @return a certificate x509.
      * @throws CertIOException           @see CertIOException
      * @throws OperatorCreationException @see OperatorCreationException
      * @throws CertificateException      @see CertificateException
      * @throws NoSuchAlgorithmException  @see NoSuchAlgorithmException
      */
-    private X509Certificate generateCertificate(Date notBefore, long validity, KeyPair keyPair)
+    private X509Certificate generateCertificate(Date notBefore, long validity, KeyPair keyPair, KeyAlgorithm algorithm)
             throws CertIOException, OperatorCreationException, CertificateException, NoSuchAlgorithmException {
 
         X500Name dn = new X500Name(BundleKeyStore.CN_SAML_JENKINS);
@@ -268,7 +376,7 @@ public class BundleKeyStore {
                 GeneralNames.getInstance(new DERSequence(subjectAltNAmes)));
 
         X509CertificateHolder certHldr = builder.build(
-                new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(keyPair.getPrivate()));
+                new JcaContentSignerBuilder(algorithm.getCertificateSignatureAlgorithm()).build(keyPair.getPrivate()));
         return new JcaX509CertificateConverter().getCertificate(certHldr);
     }
 
@@ -288,6 +396,14 @@ public class BundleKeyStore {
         return ksPkAlias;
     }
 
+    /**
+     * @return the algorithm of the generated key, the demo keystore and the keystores generated before the
+     * algorithm could be set have RSA 2048 keys.
+     */
+    public KeyAlgorithm getKeyAlgorithm() {
+        return keyAlgorithm != null ? KeyAlgorithm.parse(keyAlgorithm) : KeyAlgorithm.RSA_2048;
+    }
+
     /**
      * @return true if the demo keystore is used.
      */
@@ -319,7 +435,41 @@ public class BundleKeyStore {
                 keysExists = false;
             }
         }
-        return notExpired && fileExists && keysExists;
+        // a new key is generated when the algorithm configured changes, the demo keystore is always RSA 2048
+        boolean sameAlgorithm = isUsingDemoKeyStore() || getKeyAlgorithm() == KEY_ALGORITHM;
+        return notExpired && fileExists && keysExists && sameAlgorithm;
+    }
+
+    /**
+     * @return true if the generated key has expired, it does not read the keystore.
+     */
+    public synchronized boolean isExpired() {
+        return dateValidity != null && new Date().after(dateValidity);
+    }
+
+    /**
+     * Generate a new key if the generated key has expired, concurrent callers generate it only once.
+     * @return true if a new key was generated.
+     */
+    public synchronized boolean renewIfExpired() {
+        if (!isExpired()) {
+            return false;
+        }
+        init();
+        return true;
+    }
+
+    /**
+     * Generate a new key if the keystore is not valid, concurrent callers generate it only once.
+     * After a failed generation the demo keystore is kept until {@link #init()} is called again.
+     * @return true if a new key was generated.
+     */
+    public synchronized boolean initIfNotValid() {
+        if (failed && isUsingDemoKeyStore() || isValid()) {
+            return false;
+        }
+        init();
+        return true;
     }
 
     /**
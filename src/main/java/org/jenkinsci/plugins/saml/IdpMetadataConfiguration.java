@@ -2,35 +2,40 @@ package org.jenkinsci.plugins.saml;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import edu.umd.cs.findbugs.annotations.NonNull;
+import net.shibboleth.shared.xml.SerializeSupport;
+import net.shibboleth.shared.xml.XMLParserException;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
-import org.xml.sax.SAXException;
+import org.w3c.dom.Document;
 import hudson.Extension;
-import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
-import jenkins.util.xml.XMLUtils;
+import jenkins.util.Timer;
 import static org.jenkinsci.plugins.saml.SamlSecurityRealm.ERROR_IDP_METADATA_EMPTY;
 import static org.jenkinsci.plugins.saml.SamlSecurityRealm.ERROR_MALFORMED_URL;
 import static org.jenkinsci.plugins.saml.SamlSecurityRealm.NOT_POSSIBLE_TO_GET_THE_METADATA;
@@ -55,6 +60,27 @@ public class IdpMetadataConfiguration extends AbstractDescribableImpl<IdpMetadat
      */
     private final Long period;
 
+    /**
+     * Download of the IdP Metadata in progress.
+     */
+    private transient volatile IdpMetadataDownload download;
+
+    /**
+     * Where the IdP Metadata file of this configuration comes from, it is shared with the configurations that
+     * replace this one without changing the URL.
+     */
+    private transient volatile Source source;
+
+    /**
+     * Digest of the IdP Metadata file, with the modification time and size it was computed for.
+     */
+    private static volatile FileDigest fileDigest;
+
+    /**
+     * Configuration of the security realm in use, the IdP Metadata file follows it.
+     */
+    private static volatile IdpMetadataConfiguration installed;
+
     /**
      * Jelly Constructor.
      * @param xml Idp Metadata XML. if xml is null, url and period should not.
@@ -118,8 +144,7 @@ public class IdpMetadataConfiguration extends AbstractDescribableImpl<IdpMetadat
     public void createIdPMetadataFile() throws IOException {
         try {
             if (StringUtils.isNotBlank(xml)) {
-                Files.write(new File(SamlSecurityRealm.getIDPMetadataFilePath()).toPath(), List.of(xml),
-                                            StandardCharsets.UTF_8);
+                writeIdPMetadataFile(xml, getSource());
             } else {
                 updateIdPMetadata();
             }
@@ -128,31 +153,294 @@ public class IdpMetadataConfiguration extends AbstractDescribableImpl<IdpMetadat
         }
     }
 
+    /**
+     * <p>Makes the IdP Metadata file follow this configuration, it is called when the security realm is installed:
+     * when Jenkins is saved with it, when the configuration loaded at startup is adopted, or on its first login.
+     * A configuration that is only bound from a form or validated by Configuration as Code is never installed, so it
+     * does not touch the IdP Metadata file of the security realm in use.</p>
+     * @param configuration configuration of the security realm in use.
+     * @throws IOException in case of error writing the file, or if the configuration was already replaced.
+     */
+    static synchronized void install(@NonNull IdpMetadataConfiguration configuration) throws IOException {
+        if (installed == configuration) {
+            return;
+        }
+        if (configuration.getSource().superseded) {
+            throw new IOException("The IdP Metadata configuration was replaced by a new one");
+        }
+        configuration.apply(installed);
+        installed = configuration;
+    }
+
+    /**
+     * The configuration loaded with Jenkins is the one the IdP Metadata file was written for.
+     */
+    @Initializer(after = InitMilestone.SYSTEM_CONFIG_LOADED)
+    public static void adoptLoadedConfiguration() {
+        Jenkins jenkins = Jenkins.get();
+        if (jenkins.getSecurityRealm() instanceof SamlSecurityRealm) {
+            IdpMetadataConfiguration configuration =
+                    ((SamlSecurityRealm) jenkins.getSecurityRealm()).getIdpMetadataConfiguration();
+            synchronized (IdpMetadataConfiguration.class) {
+                if (installed == null && configuration != null) {
+                    installed = configuration;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Makes the IdP Metadata file follow the configuration without network I/O.</p>
+     * <p>The inline XML is only written when it differs from the file, so the SAML2Client built from the file is
+     * kept. When the URL has not changed the file is kept and the periodic download refreshes it, otherwise the
+     * download is scheduled in the background and the logins wait for it, see {@link #awaitIdPMetadataFile()}.
+     * The configuration replaced can not write the file any more.</p>
+     * @param previous configuration being replaced, null if there is none.
+     * @throws IOException in case of error writing the file.
+     */
+    private void apply(@CheckForNull IdpMetadataConfiguration previous) throws IOException {
+        if (StringUtils.isNotBlank(xml)) {
+            supersede(previous);
+            try {
+                writeIdPMetadataFile(xml, getSource());
+            } catch (IOException e) {
+                throw new IOException("Can not write IdP metadata file in JENKINS_HOME", e);
+            }
+            return;
+        }
+        boolean exists = new File(SamlSecurityRealm.getIDPMetadataFilePath()).exists();
+        if (exists && previous != null && StringUtils.isBlank(previous.xml) && StringUtils.equals(url, previous.url)) {
+            LOG.fine("The IdP Metadata URL has not changed, the IdP Metadata file is kept");
+            source = previous.getSource();
+            return;
+        }
+        supersede(previous);
+        if (previous != null && !StringUtils.equals(url, previous.url)) {
+            IdpMetadataRefreshStatus.get().reset();
+        }
+        Source current = getSource();
+        // the file is from another IdP, or from an unknown one, until the download succeeds
+        current.stale = true;
+        current.pendingUpdate = scheduleUpdate();
+    }
+
+    /**
+     * @return the download of the IdP Metadata in the background, the failures are logged and recorded.
+     */
+    private Future<?> scheduleUpdate() {
+        return Timer.get().submit(() -> {
+            try {
+                updateIdPMetadata();
+            } catch (IOException | RuntimeException e) {
+                LOG.log(Level.WARNING, "Was not possible to download the IdP Metadata from the URL " + url, e);
+                throw e;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Stop the configuration replaced from writing the IdP Metadata file, its download is cancelled and if it
+     * already has the IdP Metadata it is discarded.
+     */
+    private static void supersede(@CheckForNull IdpMetadataConfiguration previous) {
+        if (previous == null) {
+            return;
+        }
+        Source previousSource = previous.getSource();
+        synchronized (IdpMetadataConfiguration.class) {
+            // writeIdPMetadataFile checks it under the same lock
+            previousSource.superseded = true;
+        }
+        for (Future<?> pending : new Future<?>[] {previousSource.pendingUpdate, previousSource.retry}) {
+            if (pending != null) {
+                pending.cancel(false);
+            }
+        }
+        previous.cancelUpdate();
+    }
+
+    /**
+     * <p>Wait for the IdP Metadata file before a login.</p>
+     * <p>While the file is from another URL, or missing, the download scheduled when the configuration was
+     * installed is awaited. If it failed the login fails at once, the IdP Metadata of the previous IdP is never
+     * used, and a new download is scheduled in the background when the refresh status allows it.</p>
+     * @throws IOException if the IdP Metadata file can not be created or it is not from the configured URL.
+     */
+    void awaitIdPMetadataFile() throws IOException {
+        if (installed != this) {
+            install(this);
+        }
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        Source current = getSource();
+        if (!idpMetadataFile.exists()) {
+            if (StringUtils.isNotBlank(xml)) {
+                createIdPMetadataFile();
+            } else {
+                synchronized (current) {
+                    if (!idpMetadataFile.exists() && !isRunning(current.pendingUpdate)) {
+                        current.stale = true;
+                        current.pendingUpdate = scheduleUpdate();
+                    }
+                }
+            }
+        }
+        Future<?> pending = current.pendingUpdate;
+        if (pending != null && !pending.isDone() && current.stale) {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the IdP Metadata", e);
+            } catch (ExecutionException e) {
+                LOG.log(Level.FINE, "The IdP Metadata download failed", e.getCause());
+            } catch (CancellationException e) {
+                LOG.fine("The IdP Metadata download was cancelled by a new configuration");
+            }
+        }
+        if (current.stale) {
+            synchronized (current) {
+                if (current.stale && !isRunning(current.retry)
+                    && IdpMetadataRefreshStatus.get().isDue(System.currentTimeMillis())) {
+                    current.retry = scheduleUpdate();
+                }
+            }
+            throw new IOException("The IdP Metadata has not been downloaded from the URL " + url
+                                  + " yet, the logins fail until it is: "
+                                  + IdpMetadataRefreshStatus.get().getLastError());
+        }
+    }
+
+    private static boolean isRunning(@CheckForNull Future<?> future) {
+        return future != null && !future.isDone();
+    }
+
+    /**
+     * @return where the IdP Metadata file of this configuration comes from.
+     */
+    @NonNull
+    private Source getSource() {
+        Source current = source;
+        if (current == null) {
+            synchronized (this) {
+                current = source;
+                if (current == null) {
+                    current = new Source();
+                    source = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Write the IdP Metadata file unless it already has this content or the configuration was replaced.
+     * @param idpXml IdP Metadata.
+     * @param source where the IdP Metadata comes from.
+     * @return true if the file has this IdP Metadata.
+     * @throws IOException in case of error reading or writing the file.
+     */
+    private static synchronized boolean writeIdPMetadataFile(@NonNull String idpXml, @NonNull Source source)
+            throws IOException {
+        if (source.superseded) {
+            LOG.fine("The IdP Metadata of a configuration that was replaced is discarded");
+            return false;
+        }
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        String content = idpXml + System.lineSeparator();
+        String digest = SamlParserPool.digest(content);
+        if (!idpMetadataFile.exists() || !digest.equals(digestOf(idpMetadataFile))) {
+            Files.writeString(idpMetadataFile.toPath(), content, StandardCharsets.UTF_8);
+            SamlClientCache.idpMetadataChanged();
+            fileDigest = new FileDigest(idpMetadataFile, digest);
+        } else {
+            LOG.fine("The IdP Metadata has not changed");
+        }
+        source.stale = false;
+        return true;
+    }
+
+    /**
+     * @return the digest of the file, it is only read again when its modification time or size change.
+     */
+    private static String digestOf(File file) throws IOException {
+        FileDigest current = fileDigest;
+        if (current != null && current.matches(file)) {
+            return current.digest;
+        }
+        current = new FileDigest(file, SamlParserPool.digest(Files.readString(file.toPath(), StandardCharsets.UTF_8)));
+        fileDigest = current;
+        return current.digest;
+    }
+
     /**
      * Gets the IdP Metadata from an URL, then validate it and write it to a file (JENKINS_HOME/saml-idp.metadata.xml).
      * @throws IOException in case of error writing the file or validating the content.
      */
     public void updateIdPMetadata() throws IOException {
-        try {
-            URLConnection urlConnection = ProxyConfiguration.open(new URL(url));
-            try (InputStream in = urlConnection.getInputStream()) {
-                StringWriter writer = new StringWriter();
-                XMLUtils.safeTransform(new StreamSource(in), new StreamResult(writer));
-                String idpXml = writer.toString();
-
-                FormValidation validation = new SamlValidateIdPMetadata(idpXml).get();
-                if (FormValidation.Kind.OK == validation.kind) {
-                    Files.write(new File(SamlSecurityRealm.getIDPMetadataFilePath()).toPath(), List.of(idpXml),
-                                                StandardCharsets.UTF_8);
-                } else {
-                    throw new IllegalArgumentException(validation.getMessage());
+        IdpMetadataRefreshStatus status = IdpMetadataRefreshStatus.get();
+        try (IdpMetadataDownload download = IdpMetadataDownload.open(url)) {
+            this.download = download;
+            IdpMetadataStreamValidator.Result metadata = IdpMetadataStreamValidator.validate(download.getInputStream(),
+                                                                                             System.currentTimeMillis());
+            Document document = SamlParserPool.parse(metadata.getInputStream());
+            String idpXml = SerializeSupport.nodeToString(document);
+
+            FormValidation validation = new SamlValidateIdPMetadata(idpXml, document).get();
+            if (FormValidation.Kind.OK == validation.kind) {
+                if (!writeIdPMetadataFile(idpXml, getSource())) {
+                    return;
                 }
+                status.recordSuccess(getPeriodMillis(), download.getHeaderField("Cache-Control"),
+                                     metadata.getCacheDuration(), metadata.getValidUntil());
+            } else {
+                throw new IllegalArgumentException(validation.getMessage());
             }
-        } catch (IOException | TransformerException | SAXException e) {
+        } catch (RuntimeException e) {
+            recordFailure(status, e);
+            throw e;
+        } catch (IOException | XMLParserException e) {
+            recordFailure(status, e);
             throw new IOException("Was not possible to update the IdP Metadata from the URL " + url, e);
+        } finally {
+            this.download = null;
         }
     }
 
+    /**
+     * Record the failure unless this configuration was replaced, the status belongs to the current URL.
+     */
+    private void recordFailure(IdpMetadataRefreshStatus status, Exception e) {
+        if (!getSource().superseded) {
+            status.recordFailure(getPeriodMillis(), e);
+        }
+    }
+
+    /**
+     * Cancel the download of the IdP Metadata in progress, if any.
+     */
+    public void cancelUpdate() {
+        IdpMetadataDownload current = download;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * @return the configured period in milliseconds.
+     */
+    private long getPeriodMillis() {
+        return period != null ? TimeUnit.MINUTES.toMillis(period) : 0L;
+    }
+
+    /**
+     * @return the status of the IdP Metadata downloads, used from the configuration page.
+     */
+    @SuppressWarnings("unused")
+    public IdpMetadataRefreshStatus getRefreshStatus() {
+        return IdpMetadataRefreshStatus.get();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -170,6 +458,72 @@ public class IdpMetadataConfiguration extends AbstractDescribableImpl<IdpMetadat
         return sb.toString();
     }
 
+    /**
+     * Where the IdP Metadata file comes from.
+     */
+    private static final class Source {
+        /**
+         * Download scheduled when the configuration was installed or the file was missing, the logins wait for it.
+         */
+        private volatile Future<?> pendingUpdate;
+        /**
+         * Download scheduled again after a failure, the logins do not wait for it.
+         */
+        private volatile Future<?> retry;
+        /**
+         * The file is not from this source yet.
+         */
+        private volatile boolean stale;
+        /**
+         * The configuration was replaced, it can not write the file.
+         */
+        private volatile boolean superseded;
+    }
+
+    /**
+     * Digest of a file, with the modification time and size it was computed for.
+     */
+    private static final class FileDigest {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+        private final String digest;
+
+        private FileDigest(File file, String digest) {
+            this.path = file.getAbsolutePath();
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.digest = digest;
+        }
+
+        private boolean matches(File file) {
+            return path.equals(file.getAbsolutePath()) && lastModified == file.lastModified()
+                   && length == file.length();
+        }
+    }
+
+    /**
+     * Install the IdP Metadata configuration of the security realm when Jenkins is saved with it.
+     */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class InstallListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins && ((Jenkins) o).getSecurityRealm() instanceof SamlSecurityRealm) {
+                IdpMetadataConfiguration configuration =
+                        ((SamlSecurityRealm) ((Jenkins) o).getSecurityRealm()).getIdpMetadataConfiguration();
+                if (configuration != null) {
+                    try {
+                        install(configuration);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Was not possible to apply the IdP Metadata configuration", e);
+                    }
+                }
+            }
+        }
+    }
+
     @SuppressWarnings("unused")
     @Extension
     public static final class DescriptorImpl extends Descriptor<IdpMetadataConfiguration> {
@@ -229,18 +583,14 @@ public class IdpMetadataConfiguration extends AbstractDescribableImpl<IdpMetadat
 
         @RequirePOST
         public FormValidation doTestIdpMetadataURL(@QueryParameter("url") String url) {
-            URLConnection urlConnection;
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
-            try {
-                urlConnection = ProxyConfiguration.open(new URL(url));
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, e.getMessage(), e);
-                return FormValidation.error(NOT_POSSIBLE_TO_GET_THE_METADATA + url);
-            }
-
-            try (InputStream in = urlConnection.getInputStream()) {
-                String xml = IOUtils.toString(in,StringUtils.defaultIfEmpty(urlConnection.getContentEncoding(),"UTF-8"));
+            try (IdpMetadataDownload download = IdpMetadataDownload.open(url)) {
+                IdpMetadataStreamValidator.Result metadata = IdpMetadataStreamValidator.validate(
+                        download.getInputStream(), System.currentTimeMillis());
+                String xml = IOUtils.toString(metadata.getInputStream(), download.getCharset());
                 return new SamlValidateIdPMetadata(xml).get();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
             } catch (MalformedURLException e) {
                 return FormValidation.error(ERROR_MALFORMED_URL);
             } catch (IOException e) {
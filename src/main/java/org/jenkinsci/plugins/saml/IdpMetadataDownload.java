@@ -0,0 +1,271 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+
+/**
+ * <p>Download of the IdP Metadata from an URL.</p>
+ * <p>The connection uses connect and read timeouts, a server that trickles the content fails when the total timeout
+ * expires, the size of the content is limited while it is read, and the download can be cancelled from another
+ * thread.</p>
+ */
+@Restricted(NoExternalUse.class)
+public class IdpMetadataDownload implements AutoCloseable {
+    private static final Logger LOG = Logger.getLogger(IdpMetadataDownload.class.getName());
+
+    /**
+     * property to set the connect timeout of the IdP Metadata downloads.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataDownload.connectTimeout=MILLISECONDS
+     */
+    public static final String CONNECT_TIMEOUT_PROPERTY = IdpMetadataDownload.class.getName() + ".connectTimeout";
+    /**
+     * property to set the read timeout of the IdP Metadata downloads.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataDownload.readTimeout=MILLISECONDS
+     */
+    public static final String READ_TIMEOUT_PROPERTY = IdpMetadataDownload.class.getName() + ".readTimeout";
+    /**
+     * property to set the maximum time of the whole IdP Metadata download.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataDownload.totalTimeout=MILLISECONDS
+     */
+    public static final String TOTAL_TIMEOUT_PROPERTY = IdpMetadataDownload.class.getName() + ".totalTimeout";
+    /**
+     * property to set the maximum size of the IdP Metadata.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataDownload.maxSize=BYTES
+     */
+    public static final String MAX_SIZE_PROPERTY = IdpMetadataDownload.class.getName() + ".maxSize";
+
+    static final int DEFAULT_CONNECT_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(10);
+    static final int DEFAULT_READ_TIMEOUT = (int) TimeUnit.SECONDS.toMillis(30);
+    static final long DEFAULT_TOTAL_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024;
+
+    private static final Set<IdpMetadataDownload> ACTIVE = ConcurrentHashMap.newKeySet();
+
+    private final String url;
+    private final URLConnection connection;
+    private final InputStream in;
+    private volatile boolean cancelled;
+
+    private IdpMetadataDownload(String url, URLConnection connection, InputStream in, long deadline) {
+        this.url = url;
+        this.connection = connection;
+        this.in = new LimitedInputStream(in, getMaxSize(), deadline);
+    }
+
+    /**
+     * Connect to the URL using the Jenkins proxy configuration.
+     * @param url URL of the IdP Metadata.
+     * @return the download, it must be closed after reading the content.
+     * @throws IOException in case it is not possible to connect or the content is too big.
+     */
+    @NonNull
+    static IdpMetadataDownload open(@NonNull String url) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTotalTimeout());
+        URLConnection connection = ProxyConfiguration.open(new URL(url));
+        connection.setConnectTimeout(getConnectTimeout());
+        connection.setReadTimeout(getReadTimeout());
+        long maxSize = getMaxSize();
+        long contentLength = connection.getContentLengthLong();
+        if (contentLength > maxSize) {
+            disconnect(connection);
+            throw new IOException("The IdP Metadata from " + url + " has " + contentLength
+                                  + " bytes, it is bigger than the maximum allowed " + maxSize);
+        }
+        InputStream in;
+        try {
+            in = connection.getInputStream();
+        } catch (IOException | RuntimeException e) {
+            disconnect(connection);
+            throw e;
+        }
+        IdpMetadataDownload download = new IdpMetadataDownload(url, connection, in, deadline);
+        ACTIVE.add(download);
+        return download;
+    }
+
+    /**
+     * @return the content of the IdP Metadata, reads fail if the size limit is exceeded or the download is cancelled.
+     */
+    @NonNull
+    InputStream getInputStream() {
+        return in;
+    }
+
+    /**
+     * @return the charset of the content, UTF-8 if it is not set.
+     */
+    @NonNull
+    String getCharset() {
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String value = param.trim();
+                if (value.regionMatches(true, 0, "charset=", 0, 8)) {
+                    return value.substring(8).replace("\"", "").trim();
+                }
+            }
+        }
+        return "UTF-8";
+    }
+
+    /**
+     * @param name header name.
+     * @return the value of the header in the response, null if it is not set.
+     */
+    String getHeaderField(String name) {
+        return connection.getHeaderField(name);
+    }
+
+    /**
+     * Abort the download, a thread reading the content will fail with an {@link IOException}.
+     */
+    void cancel() {
+        if (!cancelled) {
+            cancelled = true;
+            LOG.fine("Cancelling the IdP Metadata download from " + url);
+            disconnect(connection);
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINEST, "Error closing the IdP Metadata download", e);
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ACTIVE.remove(this);
+        in.close();
+    }
+
+    /**
+     * Cancel all the IdP Metadata downloads in progress, so they do not delay the shutdown of Jenkins.
+     */
+    @Terminator
+    public static void cancelAll() {
+        for (IdpMetadataDownload download : ACTIVE) {
+            download.cancel();
+        }
+    }
+
+    private static void disconnect(URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            ((HttpURLConnection) connection).disconnect();
+        }
+    }
+
+    static int getConnectTimeout() {
+        return Integer.getInteger(CONNECT_TIMEOUT_PROPERTY, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    static int getReadTimeout() {
+        return Integer.getInteger(READ_TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT);
+    }
+
+    static long getTotalTimeout() {
+        return Long.getLong(TOTAL_TIMEOUT_PROPERTY, DEFAULT_TOTAL_TIMEOUT);
+    }
+
+    static long getMaxSize() {
+        return Long.getLong(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Stream that fails when more than the maximum number of bytes are read, the total timeout expires or
+     * the download is cancelled.
+     */
+    private class LimitedInputStream extends FilterInputStream {
+        private final long maxSize;
+        private final long deadline;
+        private long count;
+
+        LimitedInputStream(InputStream in, long maxSize, long deadline) {
+            super(in);
+            this.maxSize = maxSize;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            checkCancelled();
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkCancelled();
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws IOException {
+            count += n;
+            if (count > maxSize) {
+                throw new IOException("The IdP Metadata from " + url + " is bigger than the maximum allowed "
+                                      + maxSize + " bytes");
+            }
+        }
+
+        private void checkCancelled() throws InterruptedIOException {
+            if (cancelled || Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("The IdP Metadata download from " + url + " was cancelled");
+            }
+            if (System.nanoTime() - deadline > 0) {
+                throw new SocketTimeoutException("The IdP Metadata download from " + url + " took more than "
+                                                 + getTotalTimeout() + " ms");
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.time.FastDateFormat;
+
+/**
+ * <p>Keeps track of the IdP Metadata downloads to decide when the next one should happen.</p>
+ * <p>After a successful download the next one is scheduled after the configured period, extended up to the
+ * freshness announced by the IdP (HTTP Cache-Control max-age and SAML cacheDuration) and shortened to refresh
+ * before the SAML validUntil of the document. After a failure the retries back off exponentially, never waiting
+ * longer than the configured period. A random jitter is added to every delay, and the first download is due at a
+ * random time of its first minute, so controllers restarted at the same time do not poll the IdP in lockstep.</p>
+ */
+public class IdpMetadataRefreshStatus {
+    private static final Logger LOG = Logger.getLogger(IdpMetadataRefreshStatus.class.getName());
+    private static final String ISO_8601 = "yyyy-MM-dd'T'HH:mm:ssZ";
+    private static final Pattern MAX_AGE = Pattern.compile("(?:^|[,\\s])(?:s-)?max-age\\s*=\\s*\"?(\\d+)\"?",
+                                                           Pattern.CASE_INSENSITIVE);
+
+    /**
+     * property to set the maximum delay between retries after failures.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataRefreshStatus.maxBackoff=MILLISECONDS
+     */
+    public static final String MAX_BACKOFF_PROPERTY = IdpMetadataRefreshStatus.class.getName() + ".maxBackoff";
+    public static final long MAX_BACKOFF = Long.getLong(MAX_BACKOFF_PROPERTY, TimeUnit.HOURS.toMillis(1));
+    /**
+     * property to set the maximum time the IdP cache hints can extend the configured period.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataRefreshStatus.maxCacheHint=MILLISECONDS
+     */
+    public static final String MAX_CACHE_HINT_PROPERTY = IdpMetadataRefreshStatus.class.getName() + ".maxCacheHint";
+    public static final long MAX_CACHE_HINT = Long.getLong(MAX_CACHE_HINT_PROPERTY, TimeUnit.DAYS.toMillis(1));
+    /**
+     * property to set the jitter added to each delay, as a percentage of the delay.
+     * -Dorg.jenkinsci.plugins.saml.IdpMetadataRefreshStatus.jitterPercent=PERCENT
+     */
+    public static final String JITTER_PERCENT_PROPERTY = IdpMetadataRefreshStatus.class.getName() + ".jitterPercent";
+    public static final int JITTER_PERCENT = Integer.getInteger(JITTER_PERCENT_PROPERTY, 10);
+
+    static final long RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+    static final long MIN_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private static final IdpMetadataRefreshStatus INSTANCE = new IdpMetadataRefreshStatus();
+
+    private int consecutiveFailures;
+    private long lastSuccess;
+    private long lastFailure;
+    private String lastError;
+    private long nextRefresh = firstRefresh(System.currentTimeMillis(), ThreadLocalRandom.current());
+
+    IdpMetadataRefreshStatus() {
+    }
+
+    /**
+     * @return the status of the IdP Metadata downloads of this Jenkins instance.
+     */
+    public static IdpMetadataRefreshStatus get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record a successful download and schedule the next one.
+     * @param period configured period between updates in milliseconds.
+     * @param cacheControl value of the Cache-Control header of the response, it can be null.
+     * @param cacheDuration cacheDuration of the IdP Metadata, it can be null.
+     * @param validUntil validUntil of the IdP Metadata in milliseconds since the epoch, 0 if it is not set.
+     */
+    public synchronized void recordSuccess(long period, String cacheControl, String cacheDuration, long validUntil) {
+        long now = System.currentTimeMillis();
+        long cacheHint = Math.max(parseMaxAge(cacheControl), 0);
+        try {
+            cacheHint = Math.max(cacheHint, parseCacheDuration(cacheDuration, now));
+        } catch (IllegalArgumentException e) {
+            LOG.log(Level.FINE, "Was not possible to read the cacheDuration of the IdP Metadata", e);
+        }
+        consecutiveFailures = 0;
+        lastSuccess = now;
+        lastError = null;
+        nextRefresh = now + jitter(computeDelay(period, 0, cacheHint, validUntil, now), ThreadLocalRandom.current());
+    }
+
+    /**
+     * Record a failed download and schedule the next retry.
+     * @param period configured period between updates in milliseconds.
+     * @param e cause of the failure.
+     */
+    public synchronized void recordFailure(long period, Exception e) {
+        long now = System.currentTimeMillis();
+        consecutiveFailures++;
+        lastFailure = now;
+        lastError = e.getMessage();
+        nextRefresh = now + jitter(computeDelay(period, consecutiveFailures, 0, 0, now), ThreadLocalRandom.current());
+    }
+
+    /**
+     * Forget the downloads of the previous URL, the failures do not delay the downloads from the new one.
+     */
+    public synchronized void reset() {
+        consecutiveFailures = 0;
+        lastSuccess = 0;
+        lastFailure = 0;
+        lastError = null;
+        nextRefresh = firstRefresh(System.currentTimeMillis(), ThreadLocalRandom.current());
+    }
+
+    /**
+     * @param now current time in milliseconds.
+     * @return true if the next download should be done.
+     */
+    public synchronized boolean isDue(long now) {
+        return nextRefresh <= now;
+    }
+
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    public synchronized long getNextRefresh() {
+        return nextRefresh;
+    }
+
+    public synchronized long getLastSuccess() {
+        return lastSuccess;
+    }
+
+    public synchronized long getLastFailure() {
+        return lastFailure;
+    }
+
+    public synchronized String getLastError() {
+        return lastError;
+    }
+
+    @SuppressWarnings("unused")
+    public String getNextRefreshDate() {
+        return formatDate(getNextRefresh());
+    }
+
+    @SuppressWarnings("unused")
+    public String getLastSuccessDate() {
+        return formatDate(getLastSuccess());
+    }
+
+    private static String formatDate(long timestamp) {
+        return timestamp == 0 ? "-" : FastDateFormat.getInstance(ISO_8601).format(new Date(timestamp));
+    }
+
+    /**
+     * Calculates the delay until the next download.
+     * @param period configured period between updates in milliseconds.
+     * @param failures number of consecutive failures.
+     * @param cacheHint time the IdP announces the metadata can be cached, 0 if unknown.
+     * @param validUntil expiration of the metadata, 0 if unknown.
+     * @param now current time in milliseconds.
+     * @return the delay in milliseconds without jitter.
+     */
+    static long computeDelay(long period, int failures, long cacheHint, long validUntil, long now) {
+        long base = Math.max(period, MIN_DELAY);
+        if (failures > 0) {
+            long backoff = RETRY_DELAY << Math.min(failures - 1, 20);
+            return Math.min(backoff, Math.min(base, MAX_BACKOFF));
+        }
+        long delay = Math.max(base, Math.min(cacheHint, MAX_CACHE_HINT));
+        if (validUntil > 0) {
+            delay = Math.min(delay, Math.max((validUntil - now) / 2, MIN_DELAY));
+        }
+        return delay;
+    }
+
+    /**
+     * @param now current time in milliseconds.
+     * @param random random generator.
+     * @return the time of the first download, a random time before {@link #MIN_DELAY} elapses.
+     */
+    static long firstRefresh(long now, Random random) {
+        return now + (long) (random.nextDouble() * MIN_DELAY);
+    }
+
+    /**
+     * @param delay delay in milliseconds.
+     * @param random random generator.
+     * @return the delay plus a random amount up to {@link #JITTER_PERCENT} percent.
+     */
+    static long jitter(long delay, Random random) {
+        long bound = delay / 100 * JITTER_PERCENT;
+        if (bound <= 0) {
+            return delay;
+        }
+        return delay + (long) (random.nextDouble() * bound);
+    }
+
+    /**
+     * @param cacheControl value of a Cache-Control header.
+     * @return the max-age in milliseconds, 0 if it is not present or the response must not be cached.
+     */
+    static long parseMaxAge(String cacheControl) {
+        if (StringUtils.isBlank(cacheControl)) {
+            return 0;
+        }
+        String value = cacheControl.toLowerCase();
+        if (value.contains("no-cache") || value.contains("no-store")) {
+            return 0;
+        }
+        Matcher matcher = MAX_AGE.matcher(value);
+        if (matcher.find()) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1)));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param cacheDuration xs:duration value of the SAML cacheDuration attribute.
+     * @param now current time in milliseconds.
+     * @return the duration in milliseconds, 0 if it is not present.
+     */
+    static long parseCacheDuration(String cacheDuration, long now) {
+        if (StringUtils.isBlank(cacheDuration)) {
+            return 0;
+        }
+        return datatypeFactory().newDuration(cacheDuration.trim()).getTimeInMillis(new Date(now));
+    }
+
+    /**
+     * @param validUntil xs:dateTime value of the SAML validUntil attribute.
+     * @return the expiration in milliseconds since the epoch, 0 if it is not present.
+     */
+    static long parseValidUntil(String validUntil) {
+        if (StringUtils.isBlank(validUntil)) {
+            return 0;
+        }
+        return datatypeFactory().newXMLGregorianCalendar(validUntil.trim()).toGregorianCalendar().getTimeInMillis();
+    }
+
+    private static DatatypeFactory datatypeFactory() {
+        try {
+            return DatatypeFactory.newInstance();
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IdpMetadataRefreshStatus{" + "consecutiveFailures=" + consecutiveFailures
+               + ", lastSuccess='" + formatDate(lastSuccess) + '\''
+               + ", lastFailure='" + formatDate(lastFailure) + '\''
+               + ", nextRefresh='" + formatDate(nextRefresh) + '\'' + '}';
+    }
+}
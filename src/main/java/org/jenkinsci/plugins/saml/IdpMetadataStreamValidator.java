@@ -0,0 +1,184 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * <p>Checks the IdP Metadata while it is read, before it is parsed to a DOM and loaded by a metadata resolver.</p>
+ * <p>The root element must be an EntityDescriptor or EntitiesDescriptor, every EntityDescriptor must have an
+ * entityID, no validUntil can be expired and every X509Certificate must be a valid certificate. The read stops on
+ * the first error, so an IdP returning an error page or an expired document does not have to be fully downloaded.</p>
+ */
+final class IdpMetadataStreamValidator {
+    static final String MD_NS = "urn:oasis:names:tc:SAML:2.0:metadata";
+    static final String DS_NS = "http://www.w3.org/2000/09/xmldsig#";
+    private static final String ENTITY_DESCRIPTOR = "EntityDescriptor";
+    private static final String ENTITIES_DESCRIPTOR = "EntitiesDescriptor";
+    private static final String X509_CERTIFICATE = "X509Certificate";
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXMLInputFactory();
+
+    private IdpMetadataStreamValidator() {
+    }
+
+    /**
+     * Read and check the IdP Metadata.
+     * @param in IdP Metadata, it is read until the end of the document.
+     * @param now current time in milliseconds.
+     * @return the content read and the cache hints of the document.
+     * @throws IOException in case of error reading the stream.
+     * @throws IllegalArgumentException in case the IdP Metadata is not valid.
+     */
+    @NonNull
+    static Result validate(@NonNull InputStream in, long now) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        TeeInputStream tee = new TeeInputStream(in, content);
+        String cacheDuration = null;
+        long validUntil = 0;
+        try {
+            XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(tee);
+            try {
+                CertificateFactory certificateFactory = CertificateFactory.getInstance("X.509");
+                boolean root = true;
+                StringBuilder certificate = null;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        String name = reader.getLocalName();
+                        boolean descriptor = MD_NS.equals(reader.getNamespaceURI())
+                                             && (ENTITY_DESCRIPTOR.equals(name) || ENTITIES_DESCRIPTOR.equals(name));
+                        if (root) {
+                            if (!descriptor) {
+                                throw new IllegalArgumentException("The IdP Metadata root element is "
+                                        + reader.getName() + ", it should be an EntityDescriptor or EntitiesDescriptor");
+                            }
+                            cacheDuration = reader.getAttributeValue(null, "cacheDuration");
+                            validUntil = checkValidUntil(reader.getAttributeValue(null, "validUntil"), now);
+                            root = false;
+                        } else if (descriptor) {
+                            checkValidUntil(reader.getAttributeValue(null, "validUntil"), now);
+                        }
+                        if (descriptor && ENTITY_DESCRIPTOR.equals(name)
+                            && StringUtils.isBlank(reader.getAttributeValue(null, "entityID"))) {
+                            throw new IllegalArgumentException("The IdP Metadata has an EntityDescriptor without entityID");
+                        }
+                        if (DS_NS.equals(reader.getNamespaceURI()) && X509_CERTIFICATE.equals(name)) {
+                            certificate = new StringBuilder();
+                        }
+                    } else if (certificate != null && (event == XMLStreamConstants.CHARACTERS
+                                                       || event == XMLStreamConstants.CDATA)) {
+                        certificate.append(reader.getText());
+                    } else if (certificate != null && event == XMLStreamConstants.END_ELEMENT) {
+                        checkCertificate(certificateFactory, certificate.toString());
+                        certificate = null;
+                    }
+                }
+                if (root) {
+                    throw new IllegalArgumentException("The IdP Metadata is empty");
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
+            throw new IllegalArgumentException("The IdP Metadata not valid XML. " + e.getMessage(), e);
+        } catch (CertificateException e) {
+            throw new IllegalStateException(e);
+        }
+        IOUtils.consume(tee);
+        return new Result(content.toByteArray(), cacheDuration, validUntil);
+    }
+
+    private static long checkValidUntil(String value, long now) {
+        long validUntil = IdpMetadataRefreshStatus.parseValidUntil(value);
+        if (validUntil > 0 && validUntil <= now) {
+            throw new IllegalArgumentException("The IdP Metadata expired at " + value);
+        }
+        return validUntil;
+    }
+
+    private static void checkCertificate(CertificateFactory certificateFactory, String base64) {
+        try {
+            byte[] der = Base64.getMimeDecoder().decode(base64.trim());
+            certificateFactory.generateCertificate(new ByteArrayInputStream(der));
+        } catch (IllegalArgumentException | CertificateException e) {
+            throw new IllegalArgumentException("The IdP Metadata has a X509Certificate that is not valid", e);
+        }
+    }
+
+    private static XMLInputFactory createXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /**
+     * IdP Metadata read and the information of the root element.
+     */
+    static final class Result {
+        private final byte[] content;
+        private final String cacheDuration;
+        private final long validUntil;
+
+        private Result(byte[] content, String cacheDuration, long validUntil) {
+            this.content = content;
+            this.cacheDuration = cacheDuration;
+            this.validUntil = validUntil;
+        }
+
+        @NonNull
+        InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        /**
+         * @return the cacheDuration of the root element, null if it is not set.
+         */
+        @CheckForNull
+        String getCacheDuration() {
+            return cacheDuration;
+        }
+
+        /**
+         * @return the validUntil of the root element in milliseconds since the epoch, 0 if it is not set.
+         */
+        long getValidUntil() {
+            return validUntil;
+        }
+    }
+}
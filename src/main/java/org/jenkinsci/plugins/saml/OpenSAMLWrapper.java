@@ -17,7 +17,9 @@ under the License. */
 
 package org.jenkinsci.plugins.saml;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.StaplerRequest2;
@@ -48,7 +50,7 @@ import static java.util.logging.Level.SEVERE;
  */
 public abstract class OpenSAMLWrapper<T> {
     private static final Logger LOG = Logger.getLogger(OpenSAMLWrapper.class.getName());
-    private static final BundleKeyStore KS = new BundleKeyStore();
+    private static volatile boolean initialized;
 
     protected SamlPluginConfig samlPluginConfig;
     protected StaplerRequest2 request;
@@ -67,7 +69,7 @@ public abstract class OpenSAMLWrapper<T> {
             ClassLoader loader = thread.getContextClassLoader();
             thread.setContextClassLoader(InitializationService.class.getClassLoader());
             try {
-                InitializationService.initialize();
+                initialize();
                 ret = process();
             } finally {
                 LOG.finest("reset TCCL");
@@ -80,6 +82,29 @@ public abstract class OpenSAMLWrapper<T> {
         return ret;
     }
 
+    /**
+     * Initialize the OpenSaml services once, the following calls do nothing.
+     *
+     * @throws InitializationException if the OpenSaml services can not be initialized.
+     */
+    static void initialize() throws InitializationException {
+        if (!initialized) {
+            synchronized (OpenSAMLWrapper.class) {
+                if (!initialized) {
+                    Thread thread = Thread.currentThread();
+                    ClassLoader loader = thread.getContextClassLoader();
+                    thread.setContextClassLoader(InitializationService.class.getClassLoader());
+                    try {
+                        InitializationService.initialize();
+                        initialized = true;
+                    } finally {
+                        thread.setContextClassLoader(loader);
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Process to run using the OpenSaml services.
      *
@@ -87,6 +112,20 @@ public abstract class OpenSAMLWrapper<T> {
      */
     abstract protected T process();
 
+    /**
+     * The bundled keystore is loaded the first time it is used, not when the plugin classes are loaded.
+     */
+    private static final class KeyStoreHolder {
+        private static final BundleKeyStore KS = new BundleKeyStore();
+    }
+
+    /**
+     * @return the keystore used when the configuration does not set one.
+     */
+    static BundleKeyStore getBundleKeyStore() {
+        return KeyStoreHolder.KS;
+    }
+
     /**
      * @return J2E Context from the current HTTP request and response.
      */
@@ -98,6 +137,28 @@ public abstract class OpenSAMLWrapper<T> {
         return JEESessionStoreFactory.INSTANCE.newSessionStore(new JEEFrameworkParameters(request, response));
     }
 
+    /**
+     * @return the SAML2Client shared by the requests for the current configuration, it must not be destroyed.
+     * @throws IllegalStateException if the IdP Metadata file can not be created.
+     */
+    protected SAML2Client getSAML2Client() {
+        IdpMetadataConfiguration idpMetadataConfiguration = samlPluginConfig.getIdpMetadataConfiguration();
+        if (idpMetadataConfiguration != null) {
+            try {
+                idpMetadataConfiguration.awaitIdPMetadataFile();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        SamlEncryptionData encryptionData = samlPluginConfig.getEncryptionData();
+        if (encryptionData == null || StringUtils.isBlank(encryptionData.getKeystorePath())
+            && StringUtils.isBlank(encryptionData.getCredentialsId())) {
+            // the new key changes the keystore version, so the client and the key cached are replaced
+            getBundleKeyStore().renewIfExpired();
+        }
+        return SamlClientCache.get(samlPluginConfig, this::createSAML2Client);
+    }
+
     /**
      * @return a SAML2Client object to interact with the IdP service.
      */
@@ -107,30 +168,52 @@ public abstract class OpenSAMLWrapper<T> {
         config.setAuthnRequestBindingType(samlPluginConfig.getBinding());
 
         SamlEncryptionData encryptionData = samlPluginConfig.getEncryptionData();
+        String keystoreVersion;
         if (encryptionData != null) {
             config.setAuthnRequestSigned(encryptionData.isForceSignRedirectBindingAuthnRequest());
             config.setWantsAssertionsSigned(encryptionData.isWantsAssertionsSigned());
+            config.setSignMetadata(encryptionData.isSignMetadata());
         } else {
             config.setAuthnRequestSigned(false);
             config.setWantsAssertionsSigned(false);
+            config.setSignMetadata(false);
         }
 
-        if(encryptionData != null && StringUtils.isNotBlank(encryptionData.getKeystorePath())){
+        if (encryptionData != null && StringUtils.isNotBlank(encryptionData.getCredentialsId())) {
+            // a missing credential must not fall back to another key, the SP metadata would change
+            SamlKeyStores.InMemory credentialsKeyStore = SamlKeyStores.requireCredentials(
+                    encryptionData.getCredentialsId());
+            config.setKeystoreResource(credentialsKeyStore.getResource());
+            config.setKeystoreType(credentialsKeyStore.getType());
+            config.setKeystorePassword(credentialsKeyStore.getPassword());
+            config.setPrivateKeyPassword(credentialsKeyStore.getPassword());
+            config.setKeyStoreAlias(credentialsKeyStore.getAlias());
+            keystoreVersion = credentialsKeyStore.getVersion();
+        } else if(encryptionData != null && StringUtils.isNotBlank(encryptionData.getKeystorePath())){
             config.setKeystorePath(encryptionData.getKeystorePath());
+            config.setKeystoreType(SamlKeyStores.detectType(encryptionData.getKeystorePath()));
             config.setKeystorePassword(encryptionData.getKeystorePasswordPlainText());
             config.setPrivateKeyPassword(encryptionData.getPrivateKeyPasswordPlainText());
             config.setKeyStoreAlias(encryptionData.getPrivateKeyAlias());
+            keystoreVersion = SamlSPMetadataCache.keystoreVersion(encryptionData.getKeystorePath()) + '#'
+                              + encryptionData.getPrivateKeyAlias();
         } else {
-            if (!KS.isValid()) {
-                KS.init();
+            BundleKeyStore ks = getBundleKeyStore();
+            ks.initIfNotValid();
+            if (ks.isUsingDemoKeyStore()) {
+                LOG.warning("Using bundled keystore : " + ks.getKeystorePath());
             }
-            if (KS.isUsingDemoKeyStore()) {
-                LOG.warning("Using bundled keystore : " + KS.getKeystorePath());
+            config.setKeystorePath(ks.getKeystorePath());
+            config.setKeystorePassword(ks.getKsPassword());
+            config.setPrivateKeyPassword(ks.getKsPkPassword());
+            config.setKeyStoreAlias(ks.getKsPkAlias());
+            keystoreVersion = SamlSPMetadataCache.keystoreVersion(ks.getKeystorePath()) + '#' + ks.getKsPkAlias();
+            BundleKeyStore.KeyAlgorithm keyAlgorithm = ks.getKeyAlgorithm();
+            if (keyAlgorithm != BundleKeyStore.KeyAlgorithm.RSA_2048) {
+                // sign and advertise in the SP metadata the algorithms that match the generated key
+                config.setSignatureAlgorithms(List.of(keyAlgorithm.getSignatureAlgorithm()));
+                config.setSignatureReferenceDigestMethods(List.of(keyAlgorithm.getDigestMethod()));
             }
-            config.setKeystorePath(KS.getKeystorePath());
-            config.setKeystorePassword(KS.getKsPassword());
-            config.setPrivateKeyPassword(KS.getKsPkPassword());
-            config.setKeyStoreAlias(KS.getKsPkAlias());
         }
 
         config.setMaximumAuthenticationLifetime(samlPluginConfig.getMaximumAuthenticationLifetime());
@@ -163,7 +246,7 @@ public abstract class OpenSAMLWrapper<T> {
 
         config.setForceServiceProviderMetadataGeneration(true);
         config.setServiceProviderMetadataResource(new SamlFileResource(SamlSecurityRealm.getSPMetadataFilePath()));
-        SAML2Client saml2Client = new SAML2Client(config);
+        SAML2Client saml2Client = new KeyCachingSAML2Client(config, keystoreVersion);
         saml2Client.setCallbackUrl(samlPluginConfig.getConsumerServiceUrl());
         saml2Client.setCallbackUrlResolver(new NoParameterCallbackUrlResolver());
         if(advancedConfiguration != null && advancedConfiguration.getRandomRelayState()){
@@ -181,4 +264,23 @@ public abstract class OpenSAMLWrapper<T> {
         return saml2Client;
     }
 
+    /**
+     * SAML2Client that shares the unlocked private key with the other clients of the same keystore version.
+     */
+    private static final class KeyCachingSAML2Client extends SAML2Client {
+        private final String keystoreVersion;
+
+        private KeyCachingSAML2Client(SAML2Configuration configuration, String keystoreVersion) {
+            super(configuration);
+            this.keystoreVersion = keystoreVersion;
+        }
+
+        @Override
+        protected void initCredentialProvider() {
+            credentialProvider = SamlCredentialCache.get(keystoreVersion, () -> {
+                super.initCredentialProvider();
+                return credentialProvider;
+            });
+        }
+    }
 }
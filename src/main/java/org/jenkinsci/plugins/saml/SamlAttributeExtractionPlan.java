@@ -0,0 +1,212 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.saml.conf.Attribute;
+import org.jenkinsci.plugins.saml.conf.AttributeEntry;
+import org.pac4j.saml.profile.SAML2Profile;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import static hudson.security.SecurityRealm.AUTHENTICATED_AUTHORITY2;
+
+/**
+ * <p>Reads the user data from a SAML Profile.</p>
+ * <p>The attribute names of the configuration are resolved once into a map from attribute name to what it provides,
+ * so a login walks the attributes of the profile once and only converts the attributes that are used.</p>
+ */
+final class SamlAttributeExtractionPlan {
+    // the messages are about the login, they keep the logger of the realm
+    private static final Logger LOG = Logger.getLogger(SamlSecurityRealm.class.getName());
+
+    private enum Field {
+        USERNAME, DISPLAY_NAME, EMAIL, GROUPS
+    }
+
+    private final Map<String, Set<Field>> fields = new HashMap<>();
+    private final Set<String> customAttributeNames = new HashSet<>();
+    private final List<Attribute> customAttributesOrder = new ArrayList<>();
+    private final String usernameAttributeName;
+    private final String usernameCaseConversion;
+    private final SamlGroupsFilter groupsFilter;
+
+    SamlAttributeExtractionPlan(SamlSecurityRealm realm) {
+        this.usernameAttributeName = realm.getUsernameAttributeName();
+        this.usernameCaseConversion = realm.getUsernameCaseConversion();
+        this.groupsFilter = realm.getGroupsFilter();
+        addField(usernameAttributeName, Field.USERNAME);
+        addField(realm.getDisplayNameAttributeName(), Field.DISPLAY_NAME);
+        addField(realm.getEmailAttributeName(), Field.EMAIL);
+        addField(realm.getGroupsAttributeName(), Field.GROUPS);
+        for (AttributeEntry attributeEntry : realm.getSamlCustomAttributes()) {
+            if (attributeEntry instanceof Attribute) {
+                Attribute attribute = (Attribute) attributeEntry;
+                if (attribute.getName() != null) {
+                    customAttributeNames.add(attribute.getName());
+                    customAttributesOrder.add(attribute);
+                }
+            }
+        }
+    }
+
+    private void addField(String attributeName, Field field) {
+        if (attributeName != null) {
+            fields.computeIfAbsent(attributeName, k -> EnumSet.noneOf(Field.class)).add(field);
+        }
+    }
+
+    /**
+     * @param saml2Profile SAML Profile.
+     * @return the user data of the profile.
+     */
+    @NonNull
+    SamlLoginRecord extract(@NonNull SAML2Profile saml2Profile) {
+        String username = null;
+        boolean usernameFound = false;
+        String fullName = null;
+        String email = null;
+        List<String> groups = Collections.emptyList();
+        Map<String, String> customValues = customAttributeNames.isEmpty() ? Collections.emptyMap() : new HashMap<>();
+
+        for (Map.Entry<String, Object> entry : saml2Profile.getAttributes().entrySet()) {
+            Set<Field> entryFields = fields.get(entry.getKey());
+            if (entryFields != null) {
+                List<String> values = getListOfValues(entry.getValue());
+                for (Field field : entryFields) {
+                    switch (field) {
+                        case USERNAME:
+                            if (!values.isEmpty()) {
+                                username = values.get(0);
+                                usernameFound = true;
+                            }
+                            break;
+                        case DISPLAY_NAME:
+                            fullName = values.isEmpty() ? null : values.get(0);
+                            break;
+                        case EMAIL:
+                            email = firstNotEmpty(values);
+                            break;
+                        case GROUPS:
+                            groups = values;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+            if (entry.getValue() != null && customAttributeNames.contains(entry.getKey())) {
+                customValues.put(entry.getKey(), entry.getValue().toString());
+            }
+        }
+
+        if (usernameAttributeName != null && !usernameFound) {
+            LOG.log(Level.SEVERE, "Unable to get username from attribute {0} value {1}, Saml Profile {2}",
+                    new Object[]{usernameAttributeName, saml2Profile.getAttribute(usernameAttributeName), saml2Profile});
+            LOG.log(Level.SEVERE, "Falling back to NameId {0}", saml2Profile.getId());
+        }
+        if (!usernameFound) {
+            username = saml2Profile.getId();
+        }
+        String profileUsername = username;
+        username = convertCase(username);
+
+        List<GrantedAuthority> authorities = new ArrayList<>(groups.size() + 1);
+        authorities.add(AUTHENTICATED_AUTHORITY2);
+        int countEmptyGroups = 0;
+        for (String group : groups) {
+            if (StringUtils.isNotBlank(group)) {
+                String name = groupsFilter != null ? groupsFilter.apply(group) : group;
+                if (StringUtils.isNotBlank(name)) {
+                    authorities.add(new SimpleGrantedAuthority(name));
+                }
+            } else {
+                countEmptyGroups++;
+            }
+        }
+        if (countEmptyGroups > 0) {
+            LOG.log(Level.WARNING, String.format("Found %d empty groups in the saml profile for %s. Please check the SAML backend configuration.", countEmptyGroups, profileUsername));
+        }
+
+        List<SamlLoginRecord.CustomAttribute> custom = new ArrayList<>(customValues.size());
+        if (!customValues.isEmpty()) {
+            for (Attribute attribute : customAttributesOrder) {
+                String value = customValues.get(attribute.getName());
+                if (value != null) {
+                    custom.add(new SamlLoginRecord.CustomAttribute(attribute.getName(), attribute.getDisplayName(), value));
+                }
+            }
+        }
+        return new SamlLoginRecord(username, fullName, email, authorities, custom);
+    }
+
+    /**
+     * @return true if custom attributes are configured.
+     */
+    boolean hasCustomAttributes() {
+        return !customAttributesOrder.isEmpty();
+    }
+
+    private String convertCase(String username) {
+        if (username == null) {
+            return null;
+        }
+        if ("lowercase".compareTo(usernameCaseConversion) == 0) {
+            return username.toLowerCase();
+        } else if ("uppercase".compareTo(usernameCaseConversion) == 0) {
+            return username.toUpperCase();
+        }
+        return username;
+    }
+
+    @CheckForNull
+    private static String firstNotEmpty(List<String> values) {
+        for (String item : values) {
+            if (StringUtils.isNotEmpty(item)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * retrieve the value of an attribute in a list for consistence with the reset of attributes manage.
+     * @return the values of the attribute in a list.
+     */
+    @NonNull
+    @SuppressWarnings("unchecked")
+    private static List<String> getListOfValues(Object attributeValue) {
+        if (attributeValue instanceof List) {
+            return (List<String>) attributeValue;
+        } else if (attributeValue instanceof String) {
+            return Collections.singletonList((String) attributeValue);
+        }
+        return Collections.emptyList();
+    }
+}
@@ -17,10 +17,12 @@ under the License. */
 
 package org.jenkinsci.plugins.saml;
 
+import java.io.Serializable;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 
 /**
+ * The token is kept in the HTTP session, it is serialized as its user details, the authorities are not written twice.
  * @see AbstractAuthenticationToken
  */
 public final class SamlAuthenticationToken extends AbstractAuthenticationToken {
@@ -44,4 +46,27 @@ public final class SamlAuthenticationToken extends AbstractAuthenticationToken {
         return "SAML does not use passwords";
     }
 
-}
\ No newline at end of file
+    /**
+     * @return the compact form used to serialize the token.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(userDetails);
+    }
+
+    /**
+     * Serialized form of the token, the token is created again from the user details.
+     */
+    private static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final SamlUserDetails userDetails;
+
+        private SerializedForm(SamlUserDetails userDetails) {
+            this.userDetails = userDetails;
+        }
+
+        private Object readResolve() {
+            return new SamlAuthenticationToken(userDetails);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.pac4j.saml.client.SAML2Client;
+import jenkins.util.Timer;
+
+/**
+ * <p>Keeps the last SAML2Client built.</p>
+ * <p>Building a client parses the IdP metadata, the X509 certificates in it and the keystore, and builds the
+ * signature trust engine. They only change with the configuration, the IdP metadata or the keystore, so the
+ * client is built once per version of those and shared by the logins, only the verification of the signature of
+ * each message is left on the login path. The client replaced is destroyed after a while, when the logins that
+ * were using it have finished.</p>
+ */
+final class SamlClientCache {
+    private static final Logger LOG = Logger.getLogger(SamlClientCache.class.getName());
+
+    /**
+     * property to set how long a replaced client is kept before it is destroyed.
+     * -Dorg.jenkinsci.plugins.saml.SamlClientCache.destroyDelay=SECONDS
+     */
+    public static final String DESTROY_DELAY_PROPERTY = SamlClientCache.class.getName() + ".destroyDelay";
+    public static final long DESTROY_DELAY = Long.getLong(DESTROY_DELAY_PROPERTY, 60);
+
+    private static final AtomicLong IDP_METADATA_VERSION = new AtomicLong();
+
+    private static volatile Entry entry;
+
+    private SamlClientCache() {
+    }
+
+    /**
+     * @param samlPluginConfig configuration of the SAML plugin.
+     * @param factory builds and initializes a client for the configuration.
+     * @return the client for the current configuration, IdP metadata and keystore, it is shared and must not be
+     * destroyed by the caller.
+     */
+    @NonNull
+    static SAML2Client get(@NonNull SamlPluginConfig samlPluginConfig, @NonNull Supplier<SAML2Client> factory) {
+        Entry current = entry;
+        String key = key(samlPluginConfig);
+        if (current != null && current.key.equals(key)) {
+            return current.client;
+        }
+        synchronized (SamlClientCache.class) {
+            current = entry;
+            if (current != null && current.key.equals(key)) {
+                return current.client;
+            }
+            LOG.fine("Building the SAML2Client");
+            SAML2Client client = factory.get();
+            // building the client can renew the bundled keystore
+            entry = new Entry(key(samlPluginConfig), client);
+            if (current != null) {
+                destroyLater(current.client);
+            }
+            return client;
+        }
+    }
+
+    /**
+     * Discard the client cached, it is destroyed after a while.
+     */
+    static void invalidate() {
+        Entry current;
+        synchronized (SamlClientCache.class) {
+            current = entry;
+            entry = null;
+        }
+        if (current != null) {
+            destroyLater(current.client);
+        }
+    }
+
+    /**
+     * Record that the IdP metadata file was written, even if its size and modification time did not change.
+     */
+    static void idpMetadataChanged() {
+        IDP_METADATA_VERSION.incrementAndGet();
+    }
+
+    /**
+     * @param samlPluginConfig configuration of the SAML plugin.
+     * @return a key that changes when the client could change.
+     */
+    @NonNull
+    static String key(@NonNull SamlPluginConfig samlPluginConfig) {
+        File idpMetadata = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        return SamlSPMetadataCache.key(samlPluginConfig) + "|" + IDP_METADATA_VERSION.get() + '@'
+               + idpMetadata.lastModified() + ':' + idpMetadata.length();
+    }
+
+    private static void destroyLater(SAML2Client client) {
+        Timer.get().schedule(() -> {
+            try {
+                client.destroy();
+            } catch (RuntimeException e) {
+                LOG.log(Level.FINE, "Unable to destroy the SAML2Client", e);
+            }
+        }, DESTROY_DELAY, TimeUnit.SECONDS);
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final SAML2Client client;
+
+        private Entry(String key, SAML2Client client) {
+            this.key = key;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.security.auth.DestroyFailedException;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.opensaml.security.credential.Credential;
+import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.KeyInfoGenerator;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.pac4j.saml.crypto.CredentialProvider;
+import jenkins.util.Timer;
+
+/**
+ * <p>Keeps the private key of the keystore unlocked for the current keystore version.</p>
+ * <p>pac4j resolves the credential from the KeyStore every time it signs an AuthnRequest or decrypts an assertion,
+ * that decrypts the key entry with its password, which is slow on purpose. The credential is resolved once per
+ * version of the keystore file and alias. When the keystore changes the previous credential is dropped after a
+ * while, and its private key destroyed if the provider supports it.</p>
+ */
+final class SamlCredentialCache {
+    private static final Logger LOG = Logger.getLogger(SamlCredentialCache.class.getName());
+
+    private static Entry entry;
+
+    private SamlCredentialCache() {
+    }
+
+    /**
+     * @param version version of the keystore, it changes when the keystore file or the alias change.
+     * @param factory loads the keystore, it is only called when the version is not in the cache.
+     * @return a credential provider that resolves the credential once.
+     */
+    @NonNull
+    static synchronized CredentialProvider get(@NonNull String version, @NonNull Supplier<CredentialProvider> factory) {
+        Entry current = entry;
+        if (current != null && current.version.equals(version)) {
+            return current.provider;
+        }
+        CachedCredentialProvider provider = new CachedCredentialProvider(factory.get());
+        entry = new Entry(version, provider);
+        if (current != null) {
+            LOG.fine("The keystore changed, discarding the previous private key");
+            destroyLater(current.provider);
+        }
+        return provider;
+    }
+
+    /**
+     * Discard the credential cached.
+     */
+    static synchronized void invalidate() {
+        if (entry != null) {
+            destroyLater(entry.provider);
+            entry = null;
+        }
+    }
+
+    private static void destroyLater(CachedCredentialProvider provider) {
+        // the logins in progress with the previous SAML2Client can still use it
+        Timer.get().schedule(provider::destroy, SamlClientCache.DESTROY_DELAY, TimeUnit.SECONDS);
+    }
+
+    private static final class Entry {
+        private final String version;
+        private final CachedCredentialProvider provider;
+
+        private Entry(String version, CachedCredentialProvider provider) {
+            this.version = version;
+            this.provider = provider;
+        }
+    }
+
+    /**
+     * Resolves the credential of the keystore on first use and keeps it.
+     */
+    private static final class CachedCredentialProvider implements CredentialProvider {
+        private final CredentialProvider delegate;
+        private volatile Credential credential;
+
+        private CachedCredentialProvider(CredentialProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Credential getCredential() {
+            Credential current = credential;
+            if (current == null) {
+                synchronized (this) {
+                    current = credential;
+                    if (current == null) {
+                        current = delegate.getCredential();
+                        credential = current;
+                    }
+                }
+            }
+            return current;
+        }
+
+        @Override
+        public KeyInfo getKeyInfo() {
+            return delegate.getKeyInfo();
+        }
+
+        @Override
+        public KeyInfoCredentialResolver getKeyInfoCredentialResolver() {
+            return delegate.getKeyInfoCredentialResolver();
+        }
+
+        @Override
+        public KeyInfoGenerator getKeyInfoGenerator() {
+            return delegate.getKeyInfoGenerator();
+        }
+
+        private synchronized void destroy() {
+            Credential current = credential;
+            credential = null;
+            PrivateKey key = current != null ? current.getPrivateKey() : null;
+            if (key != null && !key.isDestroyed()) {
+                try {
+                    key.destroy();
+                } catch (DestroyFailedException e) {
+                    // most providers do not support it, the key is left to the garbage collector
+                    LOG.finest("The private key can not be destroyed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -29,14 +29,19 @@ import java.security.cert.CertificateException;
 import java.util.Enumeration;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.security.ACL;
+import hudson.util.ListBoxModel;
 import hudson.util.FormValidation;
 import hudson.util.Secret;
 import jenkins.model.Jenkins;
@@ -65,6 +70,8 @@ public class SamlEncryptionData extends AbstractDescribableImpl<SamlEncryptionDa
     private final String privateKeyAlias;
     private final boolean forceSignRedirectBindingAuthnRequest;
     private boolean wantsAssertionsSigned;
+    private boolean signMetadata;
+    private String credentialsId;
 
     @DataBoundConstructor
     public SamlEncryptionData(String keystorePath, Secret keystorePassword, Secret privateKeyPassword, String privateKeyAlias,
@@ -118,6 +125,27 @@ public class SamlEncryptionData extends AbstractDescribableImpl<SamlEncryptionDa
         this.wantsAssertionsSigned = wantsAssertionsSigned;
     }
 
+    public boolean isSignMetadata() {
+        return signMetadata;
+    }
+
+    @DataBoundSetter
+    public void setSignMetadata(boolean signMetadata) {
+        this.signMetadata = signMetadata;
+    }
+
+    /**
+     * @return id of the certificate credential with the key of the SP, it is used instead of the keystore file.
+     */
+    public @CheckForNull String getCredentialsId() {
+        return credentialsId;
+    }
+
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = Util.fixEmptyAndTrim(credentialsId);
+    }
+
     @Override
     public String toString() {
         return "SamlEncryptionData{" + "keystorePath='" + StringUtils.defaultIfBlank(keystorePath, "none") + '\''
@@ -125,7 +153,9 @@ public class SamlEncryptionData extends AbstractDescribableImpl<SamlEncryptionDa
                + ", privateKeyPassword is NOT empty='" + (getPrivateKeyPasswordPlainText() != null) + '\''
                + ", privateKeyAlias is NOT empty='" + StringUtils.isNotEmpty(privateKeyAlias) + '\''
                + ", forceSignRedirectBindingAuthnRequest = " + forceSignRedirectBindingAuthnRequest
-               + ", wantsAssertionsSigned = " + wantsAssertionsSigned + '}';
+               + ", wantsAssertionsSigned = " + wantsAssertionsSigned
+               + ", signMetadata = " + signMetadata
+               + ", credentialsId='" + StringUtils.defaultIfBlank(credentialsId, "none") + '\'' + '}';
     }
 
     @SuppressWarnings("unused")
@@ -150,6 +180,28 @@ public class SamlEncryptionData extends AbstractDescribableImpl<SamlEncryptionDa
             return "Encryption Configuration";
         }
 
+        @RequirePOST
+        public ListBoxModel doFillCredentialsIdItems(@QueryParameter String credentialsId) {
+            Jenkins jenkins = Jenkins.get();
+            if (!jenkins.hasPermission(Jenkins.ADMINISTER)) {
+                return new StandardListBoxModel().includeCurrentValue(credentialsId);
+            }
+            return new StandardListBoxModel()
+                    .includeEmptyValue()
+                    .includeAs(ACL.SYSTEM2, jenkins, StandardCertificateCredentials.class)
+                    .includeCurrentValue(credentialsId);
+        }
+
+        @RequirePOST
+        public FormValidation doCheckCredentialsId(@QueryParameter String credentialsId) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            if (StringUtils.isBlank(credentialsId)) {
+                return FormValidation.ok();
+            }
+            return SamlKeyStores.load(credentialsId, null) != null ? FormValidation.ok(SUCCESS)
+                    : FormValidation.error(ERROR_NOT_KEY_FOUND);
+        }
+
         @RequirePOST
         public FormValidation doCheckKeystorePath(@QueryParameter String keystorePath) {
             Jenkins.get().checkPermission(Jenkins.ADMINISTER);
@@ -184,7 +236,7 @@ public class SamlEncryptionData extends AbstractDescribableImpl<SamlEncryptionDa
                 return FormValidation.warning(WARN_THERE_IS_NOT_KEY_STORE);
             }
             try (InputStream in = new FileInputStream(keystorePath)) {
-                KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+                KeyStore ks = KeyStore.getInstance(SamlKeyStores.detectType(keystorePath));
                 ks.load(in, keystorePassword.getPlainText().toCharArray());
 
                 KeyStore.PasswordProtection keyPassword = new KeyStore.PasswordProtection(null);
@@ -0,0 +1,224 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>Filters and renames the groups sent by the IdP before they become authorities of the user.</p>
+ * <p>The groups are matched against the allowed groups, then the prefixes are removed and the groups renamed.
+ * Allowed groups are group names matched with a hash lookup, the lines with the <code>re:</code> prefix are
+ * regular expressions combined in a single regular expression. Groups that are not allowed never reach the session
+ * or the user properties.</p>
+ * <p>Allowed groups that are not valid regular expressions are logged once and ignored, the configuration can come
+ * from JCasC or the API without passing by the form validation.</p>
+ */
+public class SamlGroupsFilter extends AbstractDescribableImpl<SamlGroupsFilter> {
+    private static final Logger LOG = Logger.getLogger(SamlGroupsFilter.class.getName());
+    /**
+     * prefix of the allowed groups that are regular expressions.
+     */
+    public static final String REGEX_PREFIX = "re:";
+
+    private final String allowedGroups;
+    private final String stripPrefixes;
+    private final String renames;
+
+    private transient volatile Compiled compiled;
+
+    /**
+     * @param allowedGroups groups or regular expressions prefixed by <code>re:</code> of the allowed groups,
+     *                      one per line, empty allows all.
+     * @param stripPrefixes prefixes to remove from the group names, one per line.
+     * @param renames renames of the groups in the form <code>group=new name</code>, one per line.
+     */
+    @DataBoundConstructor
+    public SamlGroupsFilter(String allowedGroups, String stripPrefixes, String renames) {
+        this.allowedGroups = Util.fixEmptyAndTrim(allowedGroups);
+        this.stripPrefixes = Util.fixEmptyAndTrim(stripPrefixes);
+        this.renames = Util.fixEmptyAndTrim(renames);
+    }
+
+    public String getAllowedGroups() {
+        return allowedGroups;
+    }
+
+    public String getStripPrefixes() {
+        return stripPrefixes;
+    }
+
+    public String getRenames() {
+        return renames;
+    }
+
+    /**
+     * @param group group name sent by the IdP.
+     * @return the name of the group to use, null if the group is not allowed.
+     */
+    @CheckForNull
+    public String apply(@NonNull String group) {
+        Compiled c = compiled;
+        if (c == null) {
+            c = new Compiled(allowedGroups, stripPrefixes, renames);
+            compiled = c;
+        }
+        return c.apply(group);
+    }
+
+    private static List<String> lines(String value) {
+        List<String> ret = new ArrayList<>();
+        if (value != null) {
+            for (String line : value.split("\\r?\\n")) {
+                if (StringUtils.isNotBlank(line)) {
+                    ret.add(line.trim());
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String toString() {
+        return "SamlGroupsFilter{" + "allowedGroups=" + lines(allowedGroups).size() + ", stripPrefixes="
+               + lines(stripPrefixes).size() + ", renames=" + lines(renames).size() + '}';
+    }
+
+    /**
+     * Filter configuration ready to be applied.
+     */
+    private static final class Compiled {
+        private final boolean allowAll;
+        private final Set<String> literals = new HashSet<>();
+        private final Pattern pattern;
+        private final List<String> prefixes;
+        private final Map<String, String> renames = new HashMap<>();
+
+        private Compiled(String allowedGroups, String stripPrefixes, String renameLines) {
+            List<String> allowed = lines(allowedGroups);
+            allowAll = allowed.isEmpty();
+            List<String> regexes = new ArrayList<>();
+            for (String group : allowed) {
+                if (group.startsWith(REGEX_PREFIX)) {
+                    String regex = group.substring(REGEX_PREFIX.length());
+                    try {
+                        Pattern.compile(regex);
+                        regexes.add("(?:" + regex + ")");
+                    } catch (PatternSyntaxException e) {
+                        LOG.log(Level.WARNING, "Ignoring the allowed group {0}, it is not a valid regular expression: {1}",
+                                new Object[]{group, e.getDescription()});
+                    }
+                } else {
+                    literals.add(group);
+                }
+            }
+            pattern = regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+
+            prefixes = lines(stripPrefixes);
+            // the longest prefix wins
+            prefixes.sort(Comparator.comparingInt(String::length).reversed());
+
+            for (String line : lines(renameLines)) {
+                int separator = line.indexOf('=');
+                if (separator > 0) {
+                    renames.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+                }
+            }
+        }
+
+        private String apply(String group) {
+            if (!allowAll && !literals.contains(group) && (pattern == null || !pattern.matcher(group).matches())) {
+                return null;
+            }
+            String name = group;
+            for (String prefix : prefixes) {
+                if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                    name = name.substring(prefix.length());
+                    break;
+                }
+            }
+            return renames.getOrDefault(name, name);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<SamlGroupsFilter> {
+        public DescriptorImpl() {
+            super();
+        }
+
+        public DescriptorImpl(Class<? extends SamlGroupsFilter> clazz) {
+            super(clazz);
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "Groups Filter";
+        }
+
+        @RequirePOST
+        public FormValidation doCheckAllowedGroups(@QueryParameter String allowedGroups) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            for (String group : lines(allowedGroups)) {
+                if (!group.startsWith(REGEX_PREFIX)) {
+                    continue;
+                }
+                try {
+                    Pattern.compile(group.substring(REGEX_PREFIX.length()));
+                } catch (PatternSyntaxException e) {
+                    return FormValidation.error("Not valid regular expression " + group + " : " + e.getDescription());
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        @RequirePOST
+        public FormValidation doCheckRenames(@QueryParameter String renames) {
+            Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+            for (String line : lines(renames)) {
+                if (line.indexOf('=') <= 0) {
+                    return FormValidation.error("The rename " + line + " should be in the form group=new name");
+                }
+            }
+            return FormValidation.ok();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCertificateCredentials;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.Resource;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>Sources of the keystore of the SP.</p>
+ * <p>The key and certificate can be a Jenkins certificate credential, the keystore is then kept in memory and it is
+ * not written to JENKINS_HOME. The type of a keystore file, JKS or PKCS#12, is detected from its content.</p>
+ */
+final class SamlKeyStores {
+    private static final Logger LOG = Logger.getLogger(SamlKeyStores.class.getName());
+
+    static final String PKCS12 = "PKCS12";
+    static final String JKS = "JKS";
+    private static final int JKS_MAGIC = 0xFEEDFEED;
+
+    /**
+     * property to set how often a certificate credential is resolved again, to notice the changes of credentials
+     * providers that do not save the Jenkins credentials.
+     * -Dorg.jenkinsci.plugins.saml.SamlKeyStores.recheckInterval=SECONDS
+     */
+    public static final String RECHECK_INTERVAL_PROPERTY = SamlKeyStores.class.getName() + ".recheckInterval";
+    public static final long RECHECK_INTERVAL = Long.getLong(RECHECK_INTERVAL_PROPERTY, 60);
+
+    private static final AtomicLong GENERATION = new AtomicLong();
+
+    private static volatile Resolved resolved;
+
+    private SamlKeyStores() {
+    }
+
+    /**
+     * @param keystorePath path of a keystore file, it can have the <code>file:</code> prefix.
+     * @return the type of the keystore, the default type if it can not be detected.
+     */
+    @NonNull
+    static String detectType(@CheckForNull String keystorePath) {
+        if (StringUtils.isBlank(keystorePath)) {
+            return KeyStore.getDefaultType();
+        }
+        Path path = Paths.get(StringUtils.removeStart(keystorePath, "file:"));
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] header = in.readNBytes(4);
+            if (header.length == 4) {
+                int magic = (header[0] & 0xFF) << 24 | (header[1] & 0xFF) << 16 | (header[2] & 0xFF) << 8 | header[3] & 0xFF;
+                if (magic == JKS_MAGIC) {
+                    return JKS;
+                }
+                // a PKCS#12 file is a DER SEQUENCE
+                if (header[0] == 0x30) {
+                    return PKCS12;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.FINE, "Unable to read the type of the keystore " + keystorePath, e);
+        }
+        String name = path.getFileName() != null ? path.getFileName().toString().toLowerCase(Locale.ROOT) : "";
+        if (name.endsWith(".p12") || name.endsWith(".pfx")) {
+            return PKCS12;
+        }
+        if (name.endsWith(".jks")) {
+            return JKS;
+        }
+        return KeyStore.getDefaultType();
+    }
+
+    /**
+     * @param credentialsId id of a certificate credential.
+     * @return the keystore of the credential in memory, null if there is no such credential or it can not be read.
+     * The credential is resolved again when the credentials of Jenkins are saved or after {@link #RECHECK_INTERVAL},
+     * in between it is returned without locking, it is called on every login.
+     */
+    @CheckForNull
+    static InMemory fromCredentials(@CheckForNull String credentialsId) {
+        if (StringUtils.isBlank(credentialsId)) {
+            return null;
+        }
+        Resolved current = resolved;
+        if (current != null && current.isValid(credentialsId)) {
+            return current.keyStore;
+        }
+        synchronized (SamlKeyStores.class) {
+            current = resolved;
+            if (current != null && current.isValid(credentialsId)) {
+                return current.keyStore;
+            }
+            long generation = GENERATION.get();
+            InMemory previous = current != null && current.credentialsId.equals(credentialsId) ? current.keyStore
+                                                                                                  : null;
+            InMemory keyStore = load(credentialsId, previous);
+            if (keyStore == null && (current == null || !current.credentialsId.equals(credentialsId)
+                                     || current.keyStore != null)) {
+                LOG.warning("The certificate credential " + credentialsId + " of the SAML encryption can not be read");
+            }
+            resolved = new Resolved(credentialsId, generation, keyStore);
+            return keyStore;
+        }
+    }
+
+    /**
+     * @param credentialsId id of a certificate credential.
+     * @return the keystore of the credential in memory.
+     * @throws IllegalStateException if there is no such credential or it can not be read.
+     */
+    @NonNull
+    static InMemory requireCredentials(@NonNull String credentialsId) {
+        InMemory keyStore = fromCredentials(credentialsId);
+        if (keyStore == null) {
+            throw new IllegalStateException("The certificate credential " + credentialsId
+                                            + " of the SAML encryption does not exist or has no private key");
+        }
+        return keyStore;
+    }
+
+    /**
+     * Resolve the credentials again on the next use.
+     */
+    static void credentialsChanged() {
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * Read the credential now, without the cache, it is used to validate the configuration.
+     * @param credentialsId id of a certificate credential.
+     * @param previous keystore read before for the same credential, it is returned if the certificate is the same.
+     * @return the keystore of the credential in memory, null if there is no such credential or it can not be read.
+     */
+    @CheckForNull
+    static InMemory load(@NonNull String credentialsId, @CheckForNull InMemory previous) {
+        StandardCertificateCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentialsInItemGroup(StandardCertificateCredentials.class, Jenkins.get(),
+                                                                 ACL.SYSTEM2, Collections.emptyList()),
+                CredentialsMatchers.withId(credentialsId));
+        if (credentials == null) {
+            return null;
+        }
+        try {
+            KeyStore keyStore = credentials.getKeyStore();
+            String alias = keyAlias(keyStore);
+            if (alias == null) {
+                return null;
+            }
+            String version = "credentials:" + credentialsId + '@' + fingerprint(keyStore.getCertificate(alias));
+            if (previous != null && previous.version.equals(version)) {
+                return previous;
+            }
+            char[] password = credentials.getPassword().getPlainText().toCharArray();
+            // pac4j reads the keystore from a resource, it is stored as PKCS#12 in memory
+            KeyStore pkcs12 = KeyStore.getInstance(PKCS12);
+            pkcs12.load(null, password);
+            pkcs12.setKeyEntry(alias, keyStore.getKey(alias, password), password, keyStore.getCertificateChain(alias));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            pkcs12.store(out, password);
+            return new InMemory(version, out.toByteArray(), credentials.getPassword().getPlainText(), alias);
+        } catch (IOException | GeneralSecurityException e) {
+            LOG.log(Level.WARNING, "Unable to read the certificate credential " + credentialsId, e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static String keyAlias(KeyStore keyStore) throws GeneralSecurityException {
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (keyStore.isKeyEntry(alias)) {
+                return alias;
+            }
+        }
+        return null;
+    }
+
+    private static String fingerprint(Certificate certificate) throws GeneralSecurityException {
+        if (certificate == null) {
+            return "none";
+        }
+        return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+    }
+
+    /**
+     * Result of resolving a credential, with the generation of the credentials it was resolved from.
+     */
+    private static final class Resolved {
+        private final String credentialsId;
+        private final long generation;
+        private final long resolvedAt = System.nanoTime();
+        @CheckForNull
+        private final InMemory keyStore;
+
+        private Resolved(String credentialsId, long generation, @CheckForNull InMemory keyStore) {
+            this.credentialsId = credentialsId;
+            this.generation = generation;
+            this.keyStore = keyStore;
+        }
+
+        private boolean isValid(String credentialsId) {
+            return this.credentialsId.equals(credentialsId) && generation == GENERATION.get()
+                   && System.nanoTime() - resolvedAt < TimeUnit.SECONDS.toNanos(RECHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * Resolve the certificate credentials again when the credentials of Jenkins are saved.
+     */
+    @Restricted(NoExternalUse.class)
+    @Extension
+    public static final class CredentialsSaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider) {
+                credentialsChanged();
+            }
+        }
+    }
+
+    /**
+     * Keystore of a credential, in memory.
+     */
+    static final class InMemory {
+        private final String version;
+        private final byte[] keystore;
+        private final String password;
+        private final String alias;
+
+        private InMemory(String version, byte[] keystore, String password, String alias) {
+            this.version = version;
+            this.keystore = keystore;
+            this.password = password;
+            this.alias = alias;
+        }
+
+        /**
+         * @return a version that changes when the credential changes.
+         */
+        @NonNull
+        String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the keystore as a resource pac4j can read, it is never written to disk.
+         */
+        @NonNull
+        Resource getResource() {
+            return new ByteArrayResource(keystore, "SAML keystore from the " + version);
+        }
+
+        @NonNull
+        String getType() {
+            return PKCS12;
+        }
+
+        @NonNull
+        String getPassword() {
+            return password;
+        }
+
+        @NonNull
+        String getAlias() {
+            return alias;
+        }
+    }
+}
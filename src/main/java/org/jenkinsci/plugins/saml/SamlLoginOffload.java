@@ -0,0 +1,182 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * <p>Runs the blocking work of a login that the browser does not have to wait for, the user save and the login
+ * listeners. The SAML Response decode, the signature validation and the session creation always run on the request
+ * thread, only the completion of the login is offloaded.</p>
+ * <p>By default it runs on the request thread. With the <code>pool</code> mode it runs in a bounded pool of threads,
+ * when the queue is full it runs on the request thread, so a login storm slows down instead of piling up work.
+ * With the <code>virtual</code> mode it runs on virtual threads, it needs Java 21 or later. In both modes at most
+ * <code>threads + queueSize</code> logins run or wait in the background, the next ones run on the request thread.</p>
+ */
+@Restricted(NoExternalUse.class)
+public final class SamlLoginOffload {
+    private static final Logger LOG = Logger.getLogger(SamlLoginOffload.class.getName());
+
+    /**
+     * property to set where the blocking work of the logins runs, none, pool or virtual.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginOffload.mode=MODE
+     */
+    public static final String MODE_PROPERTY = SamlLoginOffload.class.getName() + ".mode";
+    /**
+     * property to set the number of threads of the pool mode.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginOffload.threads=NUMBER
+     */
+    public static final String THREADS_PROPERTY = SamlLoginOffload.class.getName() + ".threads";
+    public static final int THREADS = Math.max(1, Integer.getInteger(THREADS_PROPERTY, 4));
+    /**
+     * property to set the number of tasks waiting for a thread in the pool mode, it also bounds the virtual mode.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginOffload.queueSize=NUMBER
+     */
+    public static final String QUEUE_SIZE_PROPERTY = SamlLoginOffload.class.getName() + ".queueSize";
+    public static final int QUEUE_SIZE = Math.max(1, Integer.getInteger(QUEUE_SIZE_PROPERTY, 100));
+
+    enum Mode {
+        NONE, POOL, VIRTUAL
+    }
+
+    private static final Semaphore PERMITS = new Semaphore(THREADS + QUEUE_SIZE);
+
+    private static volatile Mode mode = parseMode(System.getProperty(MODE_PROPERTY));
+
+    private static ExecutorService executor;
+
+    private SamlLoginOffload() {
+    }
+
+    static Mode parseMode(String value) {
+        if (value == null || value.isBlank()) {
+            return Mode.NONE;
+        }
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warning("Unknown " + MODE_PROPERTY + " " + value + ", the logins run on the request thread");
+            return Mode.NONE;
+        }
+    }
+
+    static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Change the mode, the tasks of the previous mode are finished first. The load test uses it to compare the modes.
+     * @param newMode where the blocking work of the next logins runs.
+     * @throws InterruptedException if it is interrupted while waiting.
+     */
+    static void setMode(@NonNull Mode newMode) throws InterruptedException {
+        synchronized (SamlLoginOffload.class) {
+            mode = newMode;
+        }
+        shutdown();
+    }
+
+    /**
+     * Run the task as configured, exceptions thrown by the task are logged whatever thread runs it.
+     * @param task blocking work of a login.
+     */
+    static void execute(@NonNull Runnable task) {
+        Runnable guarded = () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "The login task failed", e);
+            }
+        };
+        if (mode == Mode.NONE) {
+            guarded.run();
+            return;
+        }
+        if (!PERMITS.tryAcquire()) {
+            // too many logins in the background, this one slows down instead of piling up work
+            guarded.run();
+            return;
+        }
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    guarded.run();
+                } finally {
+                    PERMITS.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Jenkins is shutting down
+            PERMITS.release();
+            guarded.run();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = createExecutor(mode);
+        }
+        return executor;
+    }
+
+    static ExecutorService createExecutor(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOG.warning("Virtual threads need Java 21 or later, the logins use a pool of threads");
+            }
+        }
+        return new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE_SIZE),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SAML login"));
+    }
+
+    /**
+     * Wait for the pending tasks so the users are saved before Jenkins stops.
+     * @throws InterruptedException if it is interrupted while waiting.
+     */
+    @Terminator
+    public static void shutdown() throws InterruptedException {
+        ExecutorService current;
+        synchronized (SamlLoginOffload.class) {
+            current = executor;
+            executor = null;
+        }
+        if (current != null) {
+            current.shutdown();
+            if (!current.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warning("Some SAML logins did not finish before Jenkins stopped");
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.Collections;
+import java.util.List;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * User data read from a SAML Profile by a {@link SamlAttributeExtractionPlan}, it is immutable.
+ */
+final class SamlLoginRecord {
+    private final String username;
+    private final String fullName;
+    private final String email;
+    private final List<GrantedAuthority> authorities;
+    private final List<CustomAttribute> customAttributes;
+
+    SamlLoginRecord(@NonNull String username, String fullName, String email,
+                    @NonNull List<GrantedAuthority> authorities, @NonNull List<CustomAttribute> customAttributes) {
+        this.username = username;
+        this.fullName = fullName;
+        this.email = email;
+        this.authorities = Collections.unmodifiableList(authorities);
+        this.customAttributes = Collections.unmodifiableList(customAttributes);
+    }
+
+    /**
+     * @return the user name, with the case conversion applied.
+     */
+    @NonNull
+    String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the first value of the display name attribute, null if there is none.
+     */
+    @CheckForNull
+    String getFullName() {
+        return fullName;
+    }
+
+    /**
+     * @return the first not empty value of the email attribute, null if there is none.
+     */
+    @CheckForNull
+    String getEmail() {
+        return email;
+    }
+
+    /**
+     * @return the authenticated authority and the authorities of the groups of the user.
+     */
+    @NonNull
+    List<GrantedAuthority> getAuthorities() {
+        return authorities;
+    }
+
+    /**
+     * @return the custom attributes present in the SAML Profile, in the order they are configured.
+     */
+    @NonNull
+    List<CustomAttribute> getCustomAttributes() {
+        return customAttributes;
+    }
+
+    @Override
+    public String toString() {
+        return "SamlLoginRecord{" + "username='" + username + '\'' + ", fullName='" + fullName + '\'' + ", email='"
+               + email + '\'' + ", authorities=" + authorities.size() + ", customAttributes=" + customAttributes.size()
+               + '}';
+    }
+
+    /**
+     * Value of a custom attribute.
+     */
+    static final class CustomAttribute {
+        private final String name;
+        private final String displayName;
+        private final String value;
+
+        CustomAttribute(String name, String displayName, String value) {
+            this.name = name;
+            this.displayName = displayName;
+            this.value = value;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getDisplayName() {
+            return displayName;
+        }
+
+        String getValue() {
+            return value;
+        }
+    }
+}
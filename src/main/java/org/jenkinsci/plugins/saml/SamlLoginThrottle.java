@@ -0,0 +1,258 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.PrintWriter;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jakarta.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest2;
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.AdministrativeMonitor;
+
+/**
+ * <p>Limits the number of logins processed at the same time.</p>
+ * <p>Starting a login signs an AuthnRequest and finishing it validates and decrypts the SAML Response, both use
+ * CPU. When many users log in at once the logins over the limit wait for a while, and if they still can not start
+ * they get a page that retries later, so the rest of Jenkins keeps working.</p>
+ * <p>The queue depth and the wait times are available to other plugins from the static getters, and they are shown
+ * to the administrators by the {@link Monitor} while logins are asked to retry later.</p>
+ */
+public final class SamlLoginThrottle {
+    private static final Logger LOG = Logger.getLogger(SamlLoginThrottle.class.getName());
+
+    /**
+     * property to set the maximum number of logins processed at the same time, 0 disables the limit.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginThrottle.maxConcurrent=NUMBER
+     */
+    public static final String MAX_CONCURRENT_PROPERTY = SamlLoginThrottle.class.getName() + ".maxConcurrent";
+    public static final int MAX_CONCURRENT = Integer.getInteger(MAX_CONCURRENT_PROPERTY,
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    /**
+     * property to set how long a login waits for its turn.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginThrottle.queueTimeout=MILLISECONDS
+     */
+    public static final String QUEUE_TIMEOUT_PROPERTY = SamlLoginThrottle.class.getName() + ".queueTimeout";
+    public static final long QUEUE_TIMEOUT = Long.getLong(QUEUE_TIMEOUT_PROPERTY, TimeUnit.SECONDS.toMillis(10));
+    /**
+     * property to set after how long the browser retries a login that could not start.
+     * -Dorg.jenkinsci.plugins.saml.SamlLoginThrottle.retryAfter=SECONDS
+     */
+    public static final String RETRY_AFTER_PROPERTY = SamlLoginThrottle.class.getName() + ".retryAfter";
+    public static final int RETRY_AFTER = Integer.getInteger(RETRY_AFTER_PROPERTY, 5);
+
+    private static final Semaphore PERMITS = new Semaphore(Math.max(1, MAX_CONCURRENT), true);
+    private static final Permit NO_LIMIT = new Permit(false);
+    private static final AtomicInteger WAITING = new AtomicInteger();
+    private static final LongAdder ACQUIRED = new LongAdder();
+    private static final LongAdder REJECTED = new LongAdder();
+    private static final LongAdder TOTAL_WAIT = new LongAdder();
+    private static final AtomicLong MAX_WAIT = new AtomicLong();
+    private static final AtomicLong LAST_WARNING = new AtomicLong();
+    private static final AtomicLong LAST_REJECTED = new AtomicLong();
+
+    private SamlLoginThrottle() {
+    }
+
+    /**
+     * Wait for the turn of a login.
+     * @return the permit to process the login, it has to be closed, null if the login has to be retried later.
+     */
+    @CheckForNull
+    static Permit acquire() {
+        if (MAX_CONCURRENT <= 0) {
+            return NO_LIMIT;
+        }
+        if (PERMITS.tryAcquire()) {
+            ACQUIRED.increment();
+            return new Permit(true);
+        }
+        long start = System.nanoTime();
+        WAITING.incrementAndGet();
+        boolean acquired = false;
+        try {
+            acquired = PERMITS.tryAcquire(QUEUE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            WAITING.decrementAndGet();
+            long wait = System.nanoTime() - start;
+            TOTAL_WAIT.add(wait);
+            MAX_WAIT.accumulateAndGet(wait, Math::max);
+        }
+        if (acquired) {
+            ACQUIRED.increment();
+            return new Permit(true);
+        }
+        REJECTED.increment();
+        LAST_REJECTED.set(System.currentTimeMillis());
+        warnRejected();
+        return null;
+    }
+
+    private static void warnRejected() {
+        long now = System.nanoTime();
+        long last = LAST_WARNING.get();
+        if ((last == 0 || now - last > TimeUnit.MINUTES.toNanos(1)) && LAST_WARNING.compareAndSet(last, now)) {
+            LOG.warning("Too many SAML logins at the same time, some are asked to retry later: " + getMetrics());
+        }
+    }
+
+    /**
+     * @param request request of the login that could not start.
+     * @return a 503 response with a Retry-After header and a page that repeats the request after that time.
+     */
+    @NonNull
+    static HttpResponse retryLater(@NonNull StaplerRequest2 request) {
+        String method = request.getMethod();
+        String uri = request.getRequestURI();
+        String query = request.getQueryString();
+        String samlResponse = request.getParameter("SAMLResponse");
+        String relayState = request.getParameter("RelayState");
+        return (req, rsp, node) -> {
+            rsp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            rsp.setHeader("Retry-After", String.valueOf(RETRY_AFTER));
+            rsp.setHeader("Cache-Control", "no-store");
+            rsp.setContentType("text/html;charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.println("<!DOCTYPE html><html><head><title>Login delayed</title>");
+            if (!"POST".equals(method)) {
+                String url = query != null ? uri + '?' + query : uri;
+                w.println("<meta http-equiv=\"refresh\" content=\"" + RETRY_AFTER + ";url="
+                          + Functions.htmlAttributeEscape(url) + "\">");
+            }
+            w.println("</head><body><p>There are too many logins at the moment, please try again in " + RETRY_AFTER
+                      + " seconds.</p>");
+            if ("POST".equals(method)) {
+                // the SAML Response is still valid for a while, it can be posted again
+                w.println("<form method=\"post\" action=\"" + Functions.htmlAttributeEscape(uri) + "\">");
+                hidden(w, "SAMLResponse", samlResponse);
+                hidden(w, "RelayState", relayState);
+                w.println("<input type=\"submit\" value=\"Try again\"></form>");
+            }
+            w.println("</body></html>");
+        };
+    }
+
+    private static void hidden(PrintWriter w, String name, String value) {
+        if (value != null) {
+            w.println("<input type=\"hidden\" name=\"" + name + "\" value=\"" + Functions.htmlAttributeEscape(value) + "\">");
+        }
+    }
+
+    /**
+     * @return the number of logins waiting for their turn.
+     */
+    public static int getQueueDepth() {
+        return WAITING.get();
+    }
+
+    /**
+     * @return the number of logins being processed.
+     */
+    public static int getActive() {
+        return MAX_CONCURRENT <= 0 ? 0 : Math.max(1, MAX_CONCURRENT) - PERMITS.availablePermits();
+    }
+
+    /**
+     * @return the number of logins asked to retry later since Jenkins started.
+     */
+    public static long getRejected() {
+        return REJECTED.sum();
+    }
+
+    /**
+     * @return the average time the logins waited for their turn, in milliseconds.
+     */
+    public static long getAverageWaitMillis() {
+        long count = ACQUIRED.sum() + REJECTED.sum();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(TOTAL_WAIT.sum() / count);
+    }
+
+    /**
+     * @return the longest time a login waited for its turn, in milliseconds.
+     */
+    public static long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(MAX_WAIT.get());
+    }
+
+    /**
+     * @return a summary of the metrics.
+     */
+    @NonNull
+    public static String getMetrics() {
+        return "active=" + getActive() + ", queue=" + getQueueDepth() + ", rejected=" + getRejected()
+               + ", averageWait=" + getAverageWaitMillis() + "ms, maxWait=" + getMaxWaitMillis() + "ms";
+    }
+
+    /**
+     * Shows the metrics of the logins to the administrators when some were asked to retry later in the last hour.
+     */
+    @Extension
+    public static final class Monitor extends AdministrativeMonitor {
+        @Override
+        public boolean isActivated() {
+            long last = LAST_REJECTED.get();
+            return last != 0 && System.currentTimeMillis() - last < TimeUnit.HOURS.toMillis(1);
+        }
+
+        @NonNull
+        @Override
+        public String getDisplayName() {
+            return "SAML login throttle";
+        }
+
+        @NonNull
+        public String getMetrics() {
+            return SamlLoginThrottle.getMetrics();
+        }
+
+        @NonNull
+        public String getMaxConcurrentProperty() {
+            return MAX_CONCURRENT_PROPERTY;
+        }
+    }
+
+    /**
+     * Turn of a login, it is released when it is closed.
+     */
+    static final class Permit implements AutoCloseable {
+        private final boolean limited;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(boolean limited) {
+            this.limited = limited;
+        }
+
+        @Override
+        public void close() {
+            if (limited && released.compareAndSet(false, true)) {
+                PERMITS.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import javax.xml.XMLConstants;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.shibboleth.shared.component.ComponentInitializationException;
+import net.shibboleth.shared.xml.XMLParserException;
+import net.shibboleth.shared.xml.impl.BasicParserPool;
+import org.w3c.dom.Document;
+
+/**
+ * <p>Parser pool shared by the plugin to parse the IdP Metadata.</p>
+ * <p>The pool is created once and keeps the DocumentBuilders, so every parse does not have to look up
+ * and configure a new JAXP implementation. DTDs, external entities and XInclude are disabled.</p>
+ */
+final class SamlParserPool {
+
+    /**
+     * property to set the maximum number of parsers kept in the pool.
+     * -Dorg.jenkinsci.plugins.saml.SamlParserPool.maxPoolSize=NUMBER
+     */
+    public static final String MAX_POOL_SIZE_PROPERTY = SamlParserPool.class.getName() + ".maxPoolSize";
+    public static final int MAX_POOL_SIZE = Integer.getInteger(MAX_POOL_SIZE_PROPERTY, 10);
+
+    private SamlParserPool() {
+    }
+
+    /**
+     * Lazy initialization of the pool, it is created the first time it is used.
+     */
+    private static final class Holder {
+        private static final BasicParserPool POOL = create();
+    }
+
+    /**
+     * @return the parser pool.
+     */
+    @NonNull
+    static BasicParserPool get() {
+        return Holder.POOL;
+    }
+
+    /**
+     * @param in XML document.
+     * @return the DOM of the document.
+     * @throws XMLParserException in case the document is not valid XML.
+     */
+    @NonNull
+    static Document parse(@NonNull InputStream in) throws XMLParserException {
+        return get().parse(in);
+    }
+
+    /**
+     * @param xml XML document.
+     * @return the DOM of the document.
+     * @throws XMLParserException in case the document is not valid XML.
+     */
+    @NonNull
+    static Document parse(@NonNull String xml) throws XMLParserException {
+        return get().parse(new StringReader(xml));
+    }
+
+    /**
+     * @param text XML document or any other text.
+     * @return the SHA-256 of the UTF-8 bytes of the text in hex.
+     */
+    @NonNull
+    static String digest(@NonNull String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static BasicParserPool create() {
+        Thread thread = Thread.currentThread();
+        ClassLoader loader = thread.getContextClassLoader();
+        thread.setContextClassLoader(SamlParserPool.class.getClassLoader());
+        try {
+            BasicParserPool pool = new BasicParserPool();
+            pool.setMaxPoolSize(MAX_POOL_SIZE);
+            pool.setNamespaceAware(true);
+            pool.setExpandEntityReferences(false);
+            pool.setXincludeAware(false);
+            pool.setIgnoreComments(true);
+            pool.setBuilderFeatures(Map.of(
+                    XMLConstants.FEATURE_SECURE_PROCESSING, true,
+                    "http://apache.org/xml/features/disallow-doctype-decl", true,
+                    "http://xml.org/sax/features/external-general-entities", false,
+                    "http://xml.org/sax/features/external-parameter-entities", false,
+                    "http://apache.org/xml/features/nonvalidating/load-external-dtd", false));
+            pool.initialize();
+            return pool;
+        } catch (ComponentInitializationException e) {
+            throw new IllegalStateException("Could not initialize the XML parser pool", e);
+        } finally {
+            thread.setContextClassLoader(loader);
+        }
+    }
+}
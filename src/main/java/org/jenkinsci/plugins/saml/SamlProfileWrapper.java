@@ -53,14 +53,13 @@ public class SamlProfileWrapper extends OpenSAMLWrapper<SAML2Profile> {
         SAML2AuthenticationCredentials credentials;
         SAML2Profile saml2Profile;
         try {
-            SAML2Client client = createSAML2Client();
+            SAML2Client client = getSAML2Client();
             WebContext context = createWebContext();
             SessionStore sessionStore = createSessionStore();
             CallContext ctx = new CallContext(context, sessionStore);
             SAML2Credentials unvalidated = (SAML2Credentials) client.getCredentials(ctx).orElse(null);
             credentials = (SAML2AuthenticationCredentials) client.validateCredentials(ctx, unvalidated).orElse(null);
             saml2Profile = (SAML2Profile) client.getUserProfile(ctx, credentials).orElse(null);
-            client.destroy();
         } catch (HttpAction|SAMLException e) {
             //if the SAMLResponse is not valid we send the user again to the IdP
             throw new BadCredentialsException(e.getMessage(), e);
@@ -17,12 +17,19 @@ under the License. */
 
 package org.jenkinsci.plugins.saml;
 
+import java.util.logging.Logger;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 import org.pac4j.core.context.CallContext;
 import org.pac4j.core.context.session.SessionStore;
+import org.pac4j.core.exception.http.FoundAction;
 import org.pac4j.core.exception.http.HttpAction;
+import org.pac4j.core.exception.http.OkAction;
 import org.pac4j.core.exception.http.RedirectionAction;
+import org.pac4j.core.exception.http.SeeOtherAction;
+import org.pac4j.core.exception.http.WithLocationAction;
 import org.pac4j.core.context.WebContext;
 import org.pac4j.saml.client.SAML2Client;
 
@@ -30,6 +37,7 @@ import org.pac4j.saml.client.SAML2Client;
  * Process the current configuration and request to prepare a Redirection to the IdP.
  */
 public class SamlRedirectActionWrapper extends OpenSAMLWrapper<RedirectionAction> {
+    private static final Logger LOG = Logger.getLogger(SamlRedirectActionWrapper.class.getName());
 
     public SamlRedirectActionWrapper(SamlPluginConfig samlPluginConfig, StaplerRequest2 request, StaplerResponse2 response) {
         this.request = request;
@@ -45,15 +53,30 @@ public class SamlRedirectActionWrapper extends OpenSAMLWrapper<RedirectionAction
     @Override
     protected RedirectionAction process() throws IllegalStateException {
         try {
-            SAML2Client client = createSAML2Client();
+            SAML2Client client = getSAML2Client();
             WebContext context = createWebContext();
             SessionStore sessionStore = createSessionStore();
             CallContext ctx = new CallContext(context, sessionStore);
-            RedirectionAction redirection = client.getRedirectionAction(ctx).orElse(null);
-            client.destroy();
-            return redirection;
+            return client.getRedirectionAction(ctx).orElse(null);
         } catch (HttpAction e) {
             throw new IllegalStateException(e);
         }
     }
+
+    /**
+     * @return the HTTP response that sends the user to the IdP.
+     * @throws IllegalStateException if something goes wrong.
+     */
+    public HttpResponse getHttpResponse() throws IllegalStateException {
+        RedirectionAction action = get();
+        if (action instanceof SeeOtherAction || action instanceof FoundAction) {
+            LOG.fine("REDIRECT : " + ((WithLocationAction)action).getLocation());
+            return HttpResponses.redirectTo(((WithLocationAction)action).getLocation());
+        } else if (action instanceof OkAction) {
+            LOG.fine("SUCCESS : " + ((OkAction) action).getContent());
+            return HttpResponses.literalHtml(((OkAction) action).getContent());
+        } else {
+            throw new IllegalStateException("Received unexpected response type " + (action != null ? action.getCode() : null));
+        }
+    }
 }
@@ -0,0 +1,214 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * <p>Remembers the outcome of the SAML Responses already processed, by a digest of the response.</p>
+ * <p>Browsers and proxies can post the same SAML Response more than once. A response that failed fails again
+ * without validating its signature and decrypting it, but only when it is posted again from the same session, the
+ * failure can depend on the session or on the time it was posted. A response that succeeded can not be used to log
+ * in again, a duplicate is only accepted if it comes from the session it already logged in. A duplicate posted while
+ * the first one is being validated waits for its outcome instead of validating it too, if it succeeds the duplicate
+ * is only redirected, its session was replaced by the one of the login.</p>
+ */
+final class SamlResponseCache {
+
+    /**
+     * property to set how long the successful SAML Responses are remembered.
+     * -Dorg.jenkinsci.plugins.saml.SamlResponseCache.successTTL=SECONDS
+     */
+    public static final String SUCCESS_TTL_PROPERTY = SamlResponseCache.class.getName() + ".successTTL";
+    public static final long SUCCESS_TTL = Long.getLong(SUCCESS_TTL_PROPERTY, TimeUnit.MINUTES.toSeconds(10));
+    /**
+     * property to set how long the failed SAML Responses are remembered.
+     * -Dorg.jenkinsci.plugins.saml.SamlResponseCache.failureTTL=SECONDS
+     */
+    public static final String FAILURE_TTL_PROPERTY = SamlResponseCache.class.getName() + ".failureTTL";
+    public static final long FAILURE_TTL = Long.getLong(FAILURE_TTL_PROPERTY, 60);
+    /**
+     * property to set the maximum number of SAML Responses remembered.
+     * -Dorg.jenkinsci.plugins.saml.SamlResponseCache.maxSize=NUMBER
+     */
+    public static final String MAX_SIZE_PROPERTY = SamlResponseCache.class.getName() + ".maxSize";
+    public static final long MAX_SIZE = Long.getLong(MAX_SIZE_PROPERTY, 10000);
+
+    /**
+     * property to set how long a duplicate waits for the outcome of the SAML Response being validated.
+     * -Dorg.jenkinsci.plugins.saml.SamlResponseCache.inFlightTimeout=SECONDS
+     */
+    public static final String IN_FLIGHT_TIMEOUT_PROPERTY = SamlResponseCache.class.getName() + ".inFlightTimeout";
+    public static final long IN_FLIGHT_TIMEOUT = Long.getLong(IN_FLIGHT_TIMEOUT_PROPERTY, 30);
+
+    private static final Cache<String, Outcome> SUCCESSES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE).expireAfterWrite(SUCCESS_TTL, TimeUnit.SECONDS).build();
+    private static final Cache<String, Outcome> FAILURES = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE).expireAfterWrite(FAILURE_TTL, TimeUnit.SECONDS).build();
+    private static final ConcurrentMap<String, CompletableFuture<Outcome>> IN_FLIGHT = new ConcurrentHashMap<>();
+
+    private SamlResponseCache() {
+    }
+
+    /**
+     * @param samlResponse SAMLResponse parameter of the request.
+     * @return the digest that identifies the SAML Response.
+     */
+    @NonNull
+    static String digest(@NonNull String samlResponse) {
+        return SamlParserPool.digest(samlResponse);
+    }
+
+    /**
+     * @param digest digest of the SAML Response.
+     * @param sessionId id of the session that posted the SAML Response.
+     * @return the outcome of the SAML Response if it was processed before, the failures only from the same session,
+     * null otherwise.
+     */
+    @CheckForNull
+    static Outcome get(@NonNull String digest, @NonNull String sessionId) {
+        Outcome outcome = SUCCESSES.getIfPresent(digest);
+        return outcome != null ? outcome : FAILURES.getIfPresent(failureKey(digest, sessionId));
+    }
+
+    /**
+     * @param digest digest of the SAML Response.
+     * @param username user logged in with the SAML Response.
+     * @param sessionId id of the session created by the login.
+     * @return false if the SAML Response was already used to log in.
+     */
+    static boolean recordSuccess(@NonNull String digest, @NonNull String username, @NonNull String sessionId) {
+        return SUCCESSES.asMap().putIfAbsent(digest, new Outcome(username, null, sessionId)) == null;
+    }
+
+    /**
+     * @param digest digest of the SAML Response.
+     * @param sessionId id of the session that posted the SAML Response.
+     * @param message cause of the failure.
+     */
+    static void recordFailure(@NonNull String digest, @NonNull String sessionId, String message) {
+        FAILURES.put(failureKey(digest, sessionId), new Outcome(null, message, sessionId));
+    }
+
+    private static String failureKey(String digest, String sessionId) {
+        return digest + '|' + sessionId;
+    }
+
+    /**
+     * Start the validation of a SAML Response.
+     * @param digest digest of the SAML Response.
+     * @return null if the caller validates it and has to call {@link #finish(String, String)}, otherwise the
+     * outcome of the request that is validating it.
+     */
+    @CheckForNull
+    static CompletableFuture<Outcome> start(@NonNull String digest) {
+        return IN_FLIGHT.putIfAbsent(digest, new CompletableFuture<>());
+    }
+
+    /**
+     * Finish the validation of a SAML Response, the duplicates waiting for it get its outcome.
+     * @param digest digest of the SAML Response.
+     * @param sessionId id of the session that posted the SAML Response.
+     */
+    static void finish(@NonNull String digest, @NonNull String sessionId) {
+        CompletableFuture<Outcome> inFlight = IN_FLIGHT.remove(digest);
+        if (inFlight != null) {
+            inFlight.complete(get(digest, sessionId));
+        }
+    }
+
+    /**
+     * @param inFlight outcome of the request validating the SAML Response.
+     * @param sessionId id of the session of the duplicate.
+     * @return the outcome that applies to the duplicate, null if it has to be validated.
+     */
+    @CheckForNull
+    static Outcome await(@NonNull CompletableFuture<Outcome> inFlight, @NonNull String sessionId) {
+        Outcome outcome;
+        try {
+            outcome = inFlight.get(IN_FLIGHT_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+        if (outcome == null || !outcome.isSuccess() && !sessionId.equals(outcome.getSessionId())) {
+            return null;
+        }
+        return outcome;
+    }
+
+    static void clear() {
+        SUCCESSES.invalidateAll();
+        FAILURES.invalidateAll();
+        IN_FLIGHT.clear();
+    }
+
+    /**
+     * Outcome of the validation of a SAML Response.
+     */
+    static final class Outcome {
+        private final String username;
+        private final String message;
+        private final String sessionId;
+
+        private Outcome(String username, String message, String sessionId) {
+            this.username = username;
+            this.message = message;
+            this.sessionId = sessionId;
+        }
+
+        boolean isSuccess() {
+            return username != null;
+        }
+
+        /**
+         * @return the user logged in, null if the validation failed.
+         */
+        @CheckForNull
+        String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return the session created by the login, or the session that posted the SAML Response that failed.
+         */
+        @CheckForNull
+        String getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * @return the cause of the failure.
+         */
+        @CheckForNull
+        String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+
+/**
+ * <p>Service Provider(SP) metadata already generated, ready to be served.</p>
+ * <p>The response has a strong ETag calculated from the content, so conditional requests
+ * are answered with a 304 without generating the metadata again.</p>
+ */
+public class SamlSPMetadata implements HttpResponse {
+    public static final String CONTENT_TYPE = "application/samlmetadata+xml;charset=UTF-8";
+
+    /**
+     * property to set the max-age in seconds of the SP metadata responses.
+     * -Dorg.jenkinsci.plugins.saml.SamlSPMetadata.maxAge=SECONDS
+     */
+    public static final String MAX_AGE_PROPERTY = SamlSPMetadata.class.getName() + ".maxAge";
+    public static final int MAX_AGE = Integer.getInteger(MAX_AGE_PROPERTY, 300);
+
+    private final String metadata;
+    private final String etag;
+
+    public SamlSPMetadata(@NonNull String metadata) {
+        this.metadata = metadata;
+        this.etag = '"' + SamlParserPool.digest(metadata) + '"';
+    }
+
+    @NonNull
+    public String getMetadata() {
+        return metadata;
+    }
+
+    @NonNull
+    public String getETag() {
+        return etag;
+    }
+
+    @Override
+    public void generateResponse(StaplerRequest2 req, StaplerResponse2 rsp, Object node) throws IOException {
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "public, max-age=" + MAX_AGE);
+        if (req != null && matches(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        rsp.setContentType(CONTENT_TYPE);
+        PrintWriter writer = rsp.getWriter();
+        writer.write(metadata);
+        writer.flush();
+    }
+
+    /**
+     * @param ifNoneMatch value of the If-None-Match header of the request.
+     * @return true if the header contains the ETag of this metadata.
+     */
+    boolean matches(String ifNoneMatch) {
+        if (StringUtils.isBlank(ifNoneMatch)) {
+            return false;
+        }
+        for (String value : ifNoneMatch.split(",")) {
+            String tag = StringUtils.removeStart(value.trim(), "W/");
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,149 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * <p>Keeps the last Service Provider(SP) metadata generated.</p>
+ * <p>The metadata only changes when the configuration, the Jenkins URL or the keystore change,
+ * so it is generated with OpenSAML once per version of those and served from memory after that.</p>
+ */
+final class SamlSPMetadataCache {
+    private static final Logger LOG = Logger.getLogger(SamlSPMetadataCache.class.getName());
+
+    private static volatile Entry entry;
+
+    private SamlSPMetadataCache() {
+    }
+
+    /**
+     * @param samlPluginConfig configuration of the SAML plugin.
+     * @return the SP metadata for the configuration, it is only generated if it is not in the cache.
+     */
+    @NonNull
+    static SamlSPMetadata get(@NonNull SamlPluginConfig samlPluginConfig) {
+        Entry current = entry;
+        String key = key(samlPluginConfig);
+        if (current != null && current.key.equals(key)) {
+            return current.metadata;
+        }
+        synchronized (SamlSPMetadataCache.class) {
+            current = entry;
+            if (current != null && current.key.equals(key)) {
+                return current.metadata;
+            }
+            LOG.fine("Generating the SP metadata");
+            SamlSPMetadata metadata = new SamlSPMetadataWrapper(samlPluginConfig, null, null).get();
+            // generating the metadata can renew the bundled keystore
+            entry = new Entry(key(samlPluginConfig), metadata);
+            return metadata;
+        }
+    }
+
+    /**
+     * Discard the SP metadata cached.
+     */
+    static void invalidate() {
+        entry = null;
+    }
+
+    /**
+     * @param samlPluginConfig configuration of the SAML plugin.
+     * @return a key that changes when the SP metadata could change, it is built from the settings that the SP
+     * metadata and the SAML2Client use, the passwords are hashed.
+     */
+    @NonNull
+    static String key(@NonNull SamlPluginConfig samlPluginConfig) {
+        SamlEncryptionData encryptionData = samlPluginConfig.getEncryptionData();
+        String keystore;
+        if (encryptionData != null && StringUtils.isNotBlank(encryptionData.getCredentialsId())) {
+            SamlKeyStores.InMemory credentialsKeyStore = SamlKeyStores.fromCredentials(encryptionData.getCredentialsId());
+            keystore = credentialsKeyStore != null ? credentialsKeyStore.getVersion()
+                                                   : "credentials:" + encryptionData.getCredentialsId() + "@missing";
+        } else if (encryptionData != null && StringUtils.isNotBlank(encryptionData.getKeystorePath())) {
+            keystore = keystoreVersion(encryptionData.getKeystorePath()) + '#' + encryptionData.getPrivateKeyAlias();
+        } else {
+            BundleKeyStore ks = OpenSAMLWrapper.getBundleKeyStore();
+            keystore = keystoreVersion(ks.getKeystorePath()) + '#' + ks.getKsPkAlias();
+        }
+        StringBuilder key = new StringBuilder(keystore);
+        append(key, samlPluginConfig.getConsumerServiceUrl());
+        append(key, samlPluginConfig.getBinding());
+        append(key, samlPluginConfig.getMaximumAuthenticationLifetime());
+        if (encryptionData != null) {
+            append(key, encryptionData.getKeystorePath());
+            append(key, secret(encryptionData.getKeystorePasswordPlainText()));
+            append(key, secret(encryptionData.getPrivateKeyPasswordPlainText()));
+            append(key, encryptionData.getPrivateKeyAlias());
+            append(key, encryptionData.getCredentialsId());
+            append(key, encryptionData.isForceSignRedirectBindingAuthnRequest());
+            append(key, encryptionData.isWantsAssertionsSigned());
+            append(key, encryptionData.isSignMetadata());
+        }
+        SamlAdvancedConfiguration advancedConfiguration = samlPluginConfig.getAdvancedConfiguration();
+        if (advancedConfiguration != null) {
+            append(key, advancedConfiguration.getForceAuthn());
+            append(key, advancedConfiguration.getAuthnContextClassRef());
+            append(key, advancedConfiguration.getSpEntityId());
+            append(key, advancedConfiguration.getNameIdPolicyFormat());
+            append(key, advancedConfiguration.getRandomRelayState());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Append a field of the configuration, its length goes first so two configurations can not have the same key.
+     */
+    private static void append(StringBuilder key, Object value) {
+        String text = String.valueOf(value);
+        key.append('|').append(text.length()).append(':').append(text);
+    }
+
+    /**
+     * @return the digest of the secret, the key does not keep secrets in memory.
+     */
+    private static String secret(String value) {
+        return value != null ? SamlParserPool.digest(value) : null;
+    }
+
+    /**
+     * @param keystorePath path of the keystore.
+     * @return a version that changes when the keystore file changes.
+     */
+    static String keystoreVersion(String keystorePath) {
+        File file = new File(StringUtils.removeStart(keystorePath, "file:"));
+        if (file.isFile()) {
+            return keystorePath + '@' + file.lastModified() + ':' + file.length();
+        }
+        return keystorePath;
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final SamlSPMetadata metadata;
+
+        private Entry(String key, SamlSPMetadata metadata) {
+            this.key = key;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -17,8 +17,6 @@ under the License. */
 
 package org.jenkinsci.plugins.saml;
 
-import org.kohsuke.stapler.HttpResponse;
-import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 import org.pac4j.core.exception.TechnicalException;
@@ -27,7 +25,7 @@ import org.pac4j.saml.client.SAML2Client;
 /**
  * build the Service Provider(SP) metadata from the configuration.
  */
-public class SamlSPMetadataWrapper extends OpenSAMLWrapper<HttpResponse> {
+public class SamlSPMetadataWrapper extends OpenSAMLWrapper<SamlSPMetadata> {
 
     public SamlSPMetadataWrapper(SamlPluginConfig samlPluginConfig, StaplerRequest2 request, StaplerResponse2 response) {
         this.request = request;
@@ -40,15 +38,14 @@ public class SamlSPMetadataWrapper extends OpenSAMLWrapper<HttpResponse> {
      * @throws IllegalStateException if something goes wrong.
      */
     @Override
-    protected HttpResponse process() throws IllegalStateException {
-        SAML2Client client = createSAML2Client();
+    protected SamlSPMetadata process() throws IllegalStateException {
+        SAML2Client client = getSAML2Client();
         String metadata = "";
         try {
             metadata = client.getServiceProviderMetadataResolver().getMetadata();
-            client.destroy();
         } catch (TechnicalException e) {
            throw new IllegalStateException(e);
         }
-        return HttpResponses.text(metadata);
+        return new SamlSPMetadata(metadata);
     }
 }
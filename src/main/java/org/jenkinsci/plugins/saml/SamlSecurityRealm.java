@@ -21,23 +21,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpSession;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import org.springframework.security.core.Authentication;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.jenkinsci.plugins.saml.conf.Attribute;
 import org.jenkinsci.plugins.saml.conf.AttributeEntry;
 import org.jenkinsci.plugins.saml.user.SamlCustomProperty;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.Header;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.HttpResponses;
@@ -45,20 +48,16 @@ import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 import org.kohsuke.stapler.StaplerResponse2;
 import org.kohsuke.stapler.interceptor.RequirePOST;
-import org.pac4j.core.exception.http.FoundAction;
-import org.pac4j.core.exception.http.WithLocationAction;
-import org.pac4j.core.exception.http.OkAction;
-import org.pac4j.core.exception.http.RedirectionAction;
-import org.pac4j.core.exception.http.SeeOtherAction;
 import org.pac4j.saml.profile.SAML2Profile;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.Descriptor;
 import hudson.model.User;
 import hudson.security.ACL;
+import hudson.security.ACLContext;
 import hudson.security.GroupDetails;
 import hudson.security.SecurityRealm;
 import hudson.security.UserMayOrMayNotExistException2;
@@ -138,6 +137,9 @@ public class SamlSecurityRealm extends SecurityRealm {
     private final IdpMetadataConfiguration idpMetadataConfiguration;
 
     private List<AttributeEntry> samlCustomAttributes;
+    private SamlGroupsFilter groupsFilter;
+
+    private transient volatile SamlAttributeExtractionPlan extractionPlan;
 
     /**
      * Jenkins passes these parameters in when you update the settings.
@@ -155,7 +157,7 @@ public class SamlSecurityRealm extends SecurityRealm {
      * @param usernameCaseConversion        username case sensitive settings
      * @param binding                       SAML binding method.
      * @param samlCustomAttributes          Custom Attributes to read from the SAML Responsse.
-     * @throws IOException if it is not possible to write the IdP metadata file.
+     * @throws IOException kept for compatibility, the IdP metadata file is written when the realm is installed.
      */
     @DataBoundConstructor
     public SamlSecurityRealm(
@@ -196,7 +198,7 @@ public class SamlSecurityRealm extends SecurityRealm {
         this.binding = binding;
         this.samlCustomAttributes = samlCustomAttributes;
 
-        this.idpMetadataConfiguration.createIdPMetadataFile();
+        // the IdP Metadata file follows this configuration once the realm is installed, see IdpMetadataConfiguration.install
         LOG.finer(this.toString());
     }
 
@@ -254,18 +256,15 @@ public class SamlSecurityRealm extends SecurityRealm {
             String from, @Header("Referer") final String referer) {
         LOG.fine("SamlSecurityRealm.doCommenceLogin called. Using consumerServiceUrl " + getSamlPluginConfig().getConsumerServiceUrl());
 
-        String redirectOnFinish = calculateSafeRedirect(from, referer);
-        request.getSession().setAttribute(REFERER_ATTRIBUTE, redirectOnFinish);
+        SamlLoginThrottle.Permit permit = SamlLoginThrottle.acquire();
+        if (permit == null) {
+            return SamlLoginThrottle.retryLater(request);
+        }
+        try (permit) {
+            String redirectOnFinish = calculateSafeRedirect(from, referer);
+            request.getSession().setAttribute(REFERER_ATTRIBUTE, redirectOnFinish);
 
-        RedirectionAction action = new SamlRedirectActionWrapper(getSamlPluginConfig(), request, response).get();
-        if (action instanceof SeeOtherAction || action instanceof FoundAction) {
-            LOG.fine("REDIRECT : " + ((WithLocationAction)action).getLocation());
-            return HttpResponses.redirectTo(((WithLocationAction)action).getLocation());
-        } else if (action instanceof OkAction) {
-            LOG.fine("SUCCESS : " + ((OkAction) action).getContent());
-            return HttpResponses.literalHtml(((OkAction) action).getContent());
-        } else {
-            throw new IllegalStateException("Received unexpected response type " + action.getCode());
+            return new SamlRedirectActionWrapper(getSamlPluginConfig(), request, response).getHttpResponse();
         }
     }
 
@@ -306,28 +305,88 @@ public class SamlSecurityRealm extends SecurityRealm {
         String referer = (String) request.getSession().getAttribute(REFERER_ATTRIBUTE);
         // redirect back to original page
         String redirectUrl = referer != null ? referer : baseUrl();
+        String samlResponse = request.getParameter("SAMLResponse");
+        String responseDigest = samlResponse != null ? SamlResponseCache.digest(samlResponse) : null;
+        // the session is recreated by the login, the failures are remembered for the session that posted
+        String sessionId = request.getSession().getId();
+        if (responseDigest != null) {
+            SamlResponseCache.Outcome outcome = SamlResponseCache.get(responseDigest, sessionId);
+            if (outcome != null) {
+                return processDuplicatedResponse(outcome, sessionId, redirectUrl);
+            }
+        }
+
+        // a duplicate waits for the response in flight with a permit, as any other login
+        SamlLoginThrottle.Permit permit = SamlLoginThrottle.acquire();
+        if (permit == null) {
+            return SamlLoginThrottle.retryLater(request);
+        }
+        try (permit) {
+            if (responseDigest == null) {
+                return finishLogin(request, response, null, sessionId, redirectUrl);
+            }
+            CompletableFuture<SamlResponseCache.Outcome> inFlight = SamlResponseCache.start(responseDigest);
+            if (inFlight != null) {
+                SamlResponseCache.Outcome outcome = SamlResponseCache.await(inFlight, sessionId);
+                if (outcome != null && outcome.isSuccess()) {
+                    // a double post, the session of this request was replaced by the login of the first one
+                    LOG.fine("Duplicated SAML Response in flight, " + outcome.getUsername() + " is logged in");
+                    return HttpResponses.redirectTo(redirectUrl);
+                }
+                if (outcome != null) {
+                    return processDuplicatedResponse(outcome, sessionId, redirectUrl);
+                }
+                // the first one did not finish in time, this one is validated as a new login
+                return finishLogin(request, response, responseDigest, sessionId, redirectUrl);
+            }
+            try {
+                return finishLogin(request, response, responseDigest, sessionId, redirectUrl);
+            } finally {
+                SamlResponseCache.finish(responseDigest, sessionId);
+            }
+        }
+    }
+
+    /**
+     * Validate the SAML Response and log in the user.
+     *
+     * @param request        http request.
+     * @param response       http response.
+     * @param responseDigest digest of the SAML Response, null if there is none.
+     * @param sessionId      id of the session that posted the SAML Response.
+     * @param redirectUrl    URL to redirect the user after the login.
+     * @return the http response.
+     */
+    private HttpResponse finishLogin(StaplerRequest2 request, StaplerResponse2 response, String responseDigest,
+                                     String sessionId, String redirectUrl) {
         recreateSession(request);
         logSamlResponse(request);
 
-        boolean saveUser = false;
         SAML2Profile saml2Profile;
 
         try {
             saml2Profile = new SamlProfileWrapper(getSamlPluginConfig(), request, response).get();
         } catch (BadCredentialsException e){
+            if (responseDigest != null) {
+                SamlResponseCache.recordFailure(responseDigest, sessionId, e.getMessage());
+            }
             LOG.log(Level.WARNING, "Unable to validate the SAML Response: " + e.getMessage()
                     + CHECK_MAX_AUTH_LIFETIME
                     + CHECK_TROUBLESHOOTING_GUIDE, e);
             return HttpResponses.redirectTo(getEffectiveLogoutUrl());
         }
 
-        // getId and possibly convert, based on settings
-        String username = loadUserName(saml2Profile);
-
-        List<GrantedAuthority> authorities = loadGrantedAuthorities(saml2Profile);
+        // read all the user data from the profile, the username is converted based on settings
+        SamlLoginRecord loginRecord = getExtractionPlan().extract(saml2Profile);
+        String username = loginRecord.getUsername();
+        if (responseDigest != null
+            && !SamlResponseCache.recordSuccess(responseDigest, username, request.getSession().getId())) {
+            LOG.warning("Rejected a SAML Response that was already used to log in " + username);
+            return HttpResponses.redirectTo(getEffectiveLogoutUrl());
+        }
 
         // create user data
-        SamlUserDetails userDetails = new SamlUserDetails(username, authorities);
+        SamlUserDetails userDetails = new SamlUserDetails(username, loginRecord.getAuthorities());
 
         SamlAuthenticationToken samlAuthToken = new SamlAuthenticationToken(userDetails);
 
@@ -335,42 +394,113 @@ public class SamlSecurityRealm extends SecurityRealm {
         SecurityListener.fireAuthenticated2(userDetails);
         User user = User.current();
 
-        saveUser |= modifyUserFullName(user, saml2Profile);
-
-
-        //retrieve user email
-        List<String> emails = getListOfValues(saml2Profile.getAttribute(getEmailAttributeName()));
-        saveUser |= modifyUserEmail(user, emails);
-
-        saveUser |= modifyUserSamlCustomAttributes(user, saml2Profile);
+        if (user != null) {
+            // on the request thread unless it is configured to run in the background
+            SamlLoginOffload.execute(() -> {
+                try (ACLContext ignored = ACL.as2(samlAuthToken)) {
+                    completeLogin(user, loginRecord);
+                }
+            });
+        } else {
+            SecurityListener.fireLoggedIn(userDetails.getUsername());
+        }
+        return HttpResponses.redirectTo(redirectUrl);
+    }
 
+    /**
+     * Update the user and then notify the listeners of the login, so they see the updated user.
+     * The update takes the lock of the user, the listeners run after it is released, a slow listener does not
+     * block the logins of the users sharing the lock, the login details take it again to save the user.
+     * When the login runs in the background the browser can be redirected before it completes, the pages show
+     * the previous data of the user until then.
+     *
+     * @param user        user that logged in.
+     * @param loginRecord user data read from the SAML Profile.
+     */
+    void completeLogin(@NonNull User user, @NonNull SamlLoginRecord loginRecord) {
         try {
-            if (user != null && saveUser) {
-                user.save();
-            }
+            updateUser(user, loginRecord);
         } catch (IOException e) {
             // even if it fails, nothing critical
             LOG.log(Level.WARNING, "Unable to save updated user data", e);
         }
+        SecurityListener.fireLoggedIn(loginRecord.getUsername());
+    }
 
-        SecurityListener.fireLoggedIn(userDetails.getUsername());
-        return HttpResponses.redirectTo(redirectUrl);
+    /**
+     * update the full name, email and custom attributes of a user, the user is saved once if it is modified.
+     *
+     * @param user        user to update.
+     * @param loginRecord user data read from the SAML Profile.
+     * @return true if the user is modified.
+     * @throws IOException if it is not possible to save the user.
+     */
+    boolean updateUser(@NonNull User user, @NonNull SamlLoginRecord loginRecord) throws IOException {
+        boolean saveUser = false;
+        Lock lock = SamlUserLocks.get(user.getId());
+        lock.lock();
+        try (BulkChange bc = new BulkChange(user)) {
+            saveUser |= modifyUserFullName(user, loginRecord);
+            saveUser |= modifyUserEmail(user, loginRecord);
+            saveUser |= modifyUserSamlCustomAttributes(user, loginRecord);
+            if (saveUser) {
+                bc.commit();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return saveUser;
     }
 
     /**
-     * retrieve the value of an attribute in a list for consistence with the reset of attributes manage.
-     * @return the values of the attribute in a list.
+     * /securityRealm/syncUsers
+     * <p>
+     * Update the users from a stream of SAML attribute snapshots exported from the IdP, without waiting for them
+     * to log in. Only Jenkins administrators can use it.
+     *
+     * @param request  http request, its body is the JSON of the snapshots.
+     * @param response http response.
+     * @return the http response with the result of the synchronization.
+     * @throws IOException if it is not possible to read the request.
      */
-    @NonNull
-    private List<String> getListOfValues(Object attributeValue) {
-        @SuppressWarnings("unchecked")
-        List<String> listOfValues = Collections.emptyList();
-        if(attributeValue instanceof List) {
-            listOfValues = (List<String>) attributeValue;
-        } else if (attributeValue instanceof String){
-            listOfValues = Collections.singletonList((String) attributeValue);
+    @SuppressWarnings("unused")
+    @RequirePOST
+    public HttpResponse doSyncUsers(StaplerRequest2 request, StaplerResponse2 response) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        SamlUserSync.Result result;
+        try (InputStream in = request.getInputStream()) {
+            result = new SamlUserSync(this, getExtractionPlan()).sync(in);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while synchronizing the users", e);
         }
-        return listOfValues;
+        return HttpResponses.plainText(result.toString());
+    }
+
+    /**
+     * Answer a SAML Response that was already processed without validating it again.
+     * A successful response only redirects the session that it logged in, it can not be used to log in again.
+     * @param outcome outcome of the previous validation of the SAML Response.
+     * @param sessionId id of the session of the request.
+     * @param redirectUrl URL to redirect the user if it is already logged in.
+     * @return the http response.
+     */
+    private HttpResponse processDuplicatedResponse(SamlResponseCache.Outcome outcome, String sessionId,
+                                                   String redirectUrl) {
+        if (outcome.isSuccess()) {
+            Authentication auth = Jenkins.getAuthentication2();
+            if (sessionId.equals(outcome.getSessionId())
+                || auth instanceof SamlAuthenticationToken && auth.getName().equals(outcome.getUsername())) {
+                LOG.fine("Duplicated SAML Response, " + auth.getName() + " is already logged in");
+                return HttpResponses.redirectTo(redirectUrl);
+            }
+            LOG.warning("Rejected a SAML Response that was already used to log in " + outcome.getUsername());
+        } else {
+            LOG.warning("Unable to validate the SAML Response, it failed before: " + outcome.getMessage()
+                        + CHECK_MAX_AUTH_LIFETIME
+                        + CHECK_TROUBLESHOOTING_GUIDE);
+        }
+        return HttpResponses.redirectTo(getEffectiveLogoutUrl());
     }
 
     private String getEffectiveLogoutUrl() {
@@ -392,28 +522,34 @@ public class SamlSecurityRealm extends SecurityRealm {
         request.getSession(true);
     }
 
-    private boolean modifyUserSamlCustomAttributes(User user, SAML2Profile profile) {
+    /**
+     * update the SAML custom attributes of the current user in place, only the values that differ are changed.
+     *
+     * @param user        current user.
+     * @param loginRecord user data read from the SAML Profile.
+     * @return true if the current user is modified.
+     */
+    private boolean modifyUserSamlCustomAttributes(User user, SamlLoginRecord loginRecord) {
         boolean saveUser = false;
-        if(!getSamlCustomAttributes().isEmpty() && user != null){
-            SamlCustomProperty userProperty = new SamlCustomProperty(new ArrayList<>());
-
-            for (AttributeEntry attributeEntry : getSamlCustomAttributes()) {
-                if(attributeEntry instanceof Attribute){
-                    Attribute attr =  (Attribute) attributeEntry;
-                    Object attrValue = profile.getAttribute(attr.getName());
-                    if (attrValue != null) {
-                        SamlCustomProperty.Attribute item = new SamlCustomProperty.Attribute(attr.getName(),attr.getDisplayName());
-                        item.setValue(attrValue.toString());
-                        userProperty.getAttributes().add(item);
-                    }
+        if(getExtractionPlan().hasCustomAttributes() && user != null){
+            SamlCustomProperty userProperty = user.getProperty(SamlCustomProperty.class);
+            if (userProperty == null) {
+                userProperty = new SamlCustomProperty(new ArrayList<>());
+                try {
+                    // within the BulkChange of the login, it does not save the user
+                    user.addProperty(userProperty);
+                } catch (IOException e) {
+                    LOG.log(Level.SEVERE, "Could not update user SAML custom attributes", e);
                 }
+                saveUser = true;
             }
-            try {
-                user.addProperty(userProperty);
-            } catch (IOException e) {
-                LOG.log(Level.SEVERE, "Could not update user SAML custom attributes", e);
+
+            Set<String> names = new HashSet<>();
+            for (SamlLoginRecord.CustomAttribute attr : loginRecord.getCustomAttributes()) {
+                saveUser |= userProperty.updateAttribute(attr.getName(), attr.getDisplayName(), attr.getValue());
+                names.add(attr.getName());
             }
-            saveUser = true;
+            saveUser |= userProperty.retainAttributes(names);
         }
         return saveUser;
     }
@@ -446,37 +582,17 @@ public class SamlSecurityRealm extends SecurityRealm {
         return  Jenkins.get().getRootUrl();
     }
 
-    /**
-     * load the username from the profile and set the correct characters case.
-     *
-     * @param saml2Profile SAML Profile.
-     * @return the user name.
-     */
-    private String loadUserName(SAML2Profile saml2Profile) {
-        String username = getUsernameFromProfile(saml2Profile);
-        if ("lowercase".compareTo(getUsernameCaseConversion()) == 0) {
-            username = username.toLowerCase();
-        } else if ("uppercase".compareTo(getUsernameCaseConversion()) == 0) {
-            username = username.toUpperCase();
-        }
-        return username;
-    }
-
     /**
      * modify the fullname in the current user taken it from the SAML Profile.
      *
-     * @param user         current user.
-     * @param saml2Profile SAML Profile.
+     * @param user        current user.
+     * @param loginRecord user data read from the SAML Profile.
      * @return true if the current user is modified.
      */
-    private boolean modifyUserFullName(User user, SAML2Profile saml2Profile) {
+    private boolean modifyUserFullName(User user, SamlLoginRecord loginRecord) {
         boolean saveUser = false;
         // retrieve user display name
-        String userFullName = null;
-        List<String> names = getListOfValues(saml2Profile.getAttribute(getDisplayNameAttributeName()));
-        if (!names.isEmpty()) {
-            userFullName = names.get(0);
-        }
+        String userFullName = loginRecord.getFullName();
 
         // update user full name if necessary
         if (user != null && StringUtils.isNotBlank(userFullName)) {
@@ -496,50 +612,35 @@ public class SamlSecurityRealm extends SecurityRealm {
      */
     @Restricted(NoExternalUse.class) // Visible for testing
     List<GrantedAuthority> loadGrantedAuthorities(SAML2Profile saml2Profile) {
-        // prepare list of groups
-        List<String> groups = getListOfValues(saml2Profile.getAttribute(getGroupsAttributeName())) ;
-
-        // build list of authorities
-        List<GrantedAuthority> authorities = new ArrayList<>();
-        authorities.add(AUTHENTICATED_AUTHORITY2);
-        int countEmptyGroups = 0;
-        for (String group : groups) {
-            if (StringUtils.isNotBlank(group)) {
-                authorities.add(new SimpleGrantedAuthority(group));
-            } else {
-                countEmptyGroups++;
-            }
-        }
-        if (countEmptyGroups > 0) {
-            LOG.log(Level.WARNING, String.format("Found %d empty groups in the saml profile for %s. Please check the SAML backend configuration.", countEmptyGroups, getUsernameFromProfile(saml2Profile)));
+        return getExtractionPlan().extract(saml2Profile).getAuthorities();
+    }
+
+    /**
+     * @return the plan to read the user data from a SAML Profile with the current configuration.
+     */
+    private SamlAttributeExtractionPlan getExtractionPlan() {
+        SamlAttributeExtractionPlan plan = extractionPlan;
+        if (plan == null) {
+            plan = new SamlAttributeExtractionPlan(this);
+            extractionPlan = plan;
         }
-        return authorities;
+        return plan;
     }
 
     /**
      * set the user email. It will take the first not empty value on the list of email.
      *
-     * @param user   current user.
-     * @param emails user emails.
+     * @param user        current user.
+     * @param loginRecord user data read from the SAML Profile.
      * @return true if the current user is modified.
      */
-    private boolean modifyUserEmail(User user, @NonNull List<String> emails) {
-        String userEmail = null;
+    private boolean modifyUserEmail(User user, SamlLoginRecord loginRecord) {
+        String userEmail = loginRecord.getEmail();
         boolean saveUser = false;
-        if (emails.isEmpty()) {
-            LOG.warning("There is not Email attribute '" + getEmailAttributeName() + "' for user : " + user.getId());
-            return false;
-        }
-
-        for (String item : emails) {
-            if (StringUtils.isNotEmpty(item)) {
-                userEmail = item;
-                break;
-            }
-        }
-
         if (StringUtils.isBlank(userEmail)) {
-            LOG.warning("The Email is blank for user : " + user.getId());
+            LOG.warning("There is not Email attribute '" + getEmailAttributeName() + "' or it is blank for user : "
+                        + loginRecord.getUsername());
+            return false;
         }
 
         try {
@@ -559,25 +660,6 @@ public class SamlSecurityRealm extends SecurityRealm {
         return saveUser;
     }
 
-    /**
-     * Extract a usable Username from the samlProfile object.
-     *
-     * @param saml2Profile user profile
-     * @return the username or if it is not possible to get the attribute the profile ID
-     */
-    private String getUsernameFromProfile(SAML2Profile saml2Profile) {
-        if (getUsernameAttributeName() != null) {
-            List<String> attributes = getListOfValues(saml2Profile.getAttribute(getUsernameAttributeName()));
-            if (!attributes.isEmpty()) {
-                return attributes.get(0);
-            }
-            LOG.log(Level.SEVERE, "Unable to get username from attribute {0} value {1}, Saml Profile {2}",
-                    new Object[]{getUsernameAttributeName(), attributes.toString(), saml2Profile});
-            LOG.log(Level.SEVERE, "Falling back to NameId {0}", saml2Profile.getId());
-        }
-        return saml2Profile.getId();
-    }
-
     static String getIDPMetadataFilePath() {
         return Jenkins.get().getRootDir().getAbsolutePath() + File.separator + IDP_METADATA_FILE_NAME;
     }
@@ -590,7 +672,8 @@ public class SamlSecurityRealm extends SecurityRealm {
      * /securityRealm/metadata
      * <p>
      * URL request service method to expose the SP metadata to the user so that
-     * they can configure their IdP.
+     * they can configure their IdP. The metadata is generated once per configuration and keystore,
+     * and then it is served from memory.
      *
      * @param request  http request.
      * @param response http response.
@@ -598,7 +681,7 @@ public class SamlSecurityRealm extends SecurityRealm {
      */
     @SuppressWarnings("unused")
     public HttpResponse doMetadata(StaplerRequest2 request, StaplerResponse2 response) {
-        return new SamlSPMetadataWrapper(getSamlPluginConfig(), request, response).get();
+        return SamlSPMetadataCache.get(getSamlPluginConfig());
     }
 
     /**
@@ -758,6 +841,17 @@ public class SamlSecurityRealm extends SecurityRealm {
 
     public void setSamlCustomAttribute(List<AttributeEntry> samlCustomAttributes) {
         this.samlCustomAttributes = samlCustomAttributes;
+        this.extractionPlan = null;
+    }
+
+    public SamlGroupsFilter getGroupsFilter() {
+        return groupsFilter;
+    }
+
+    @DataBoundSetter
+    public void setGroupsFilter(SamlGroupsFilter groupsFilter) {
+        this.groupsFilter = groupsFilter;
+        this.extractionPlan = null;
     }
 
     @Override
@@ -17,16 +17,27 @@ under the License. */
 
 package org.jenkinsci.plugins.saml;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.util.Arrays;
 import java.util.Collections;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import hudson.security.SecurityRealm;
 import org.springframework.security.core.userdetails.UserDetails;
 
 /**
+ * The user details are kept in the HTTP session, they are serialized in a compact form (see {@link SerializedForm}).
  * @see UserDetails
  */
 public class SamlUserDetails implements UserDetails {
@@ -69,6 +80,13 @@ public class SamlUserDetails implements UserDetails {
         return true;
     }
 
+    /**
+     * @return the compact form used to serialize the user details.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
     @Override
     public String toString() {
         return "SamlUserDetails{" + "username='" + getUsername() + '\'' + ", authorities=" + (getAuthorities() == null
@@ -78,4 +96,127 @@ public class SamlUserDetails implements UserDetails {
            + isAccountNonLocked() + '\'' + ", isCredentialsNonExpired='" + isCredentialsNonExpired() + '\''
            + ", isEnabled='" + isEnabled() + '}';
     }
+
+    /**
+     * <p>Serialized form of the user details.</p>
+     * <p>The group names are sorted and front and back coded, each name is written as the length of the prefix
+     * and the suffix it shares with the previous one and the rest of the name. Group names from a directory
+     * usually share long prefixes and suffixes (e.g. "CN=...,OU=Groups,DC=example,DC=com"), so with hundreds
+     * of groups the session is several times smaller than with the default serialization of the authorities.</p>
+     */
+    static final class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private transient String username;
+        private transient boolean authenticated;
+        private transient List<String> groups;
+
+        SerializedForm(SamlUserDetails userDetails) {
+            username = userDetails.getUsername();
+            TreeSet<String> names = new TreeSet<>();
+            for (GrantedAuthority authority : userDetails.getAuthorities()) {
+                if (authority == SecurityRealm.AUTHENTICATED_AUTHORITY2) {
+                    authenticated = true;
+                } else if (authority.getAuthority() != null) {
+                    names.add(authority.getAuthority());
+                }
+            }
+            groups = new ArrayList<>(names);
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            out.writeUTF(username);
+            out.writeBoolean(authenticated);
+            out.writeInt(groups.size());
+            String previous = "";
+            for (String group : groups) {
+                int prefix = commonPrefix(previous, group);
+                int suffix = commonSuffix(previous, group, prefix);
+                writeVarInt(out, prefix);
+                writeVarInt(out, suffix);
+                out.writeUTF(group.substring(prefix, group.length() - suffix));
+                previous = group;
+            }
+        }
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            username = in.readUTF();
+            authenticated = in.readBoolean();
+            int size = in.readInt();
+            if (size < 0) {
+                throw new InvalidObjectException("Negative number of groups " + size);
+            }
+            groups = new ArrayList<>(Math.min(size, 1024));
+            String previous = "";
+            for (int i = 0; i < size; i++) {
+                int prefix = readVarInt(in);
+                int suffix = readVarInt(in);
+                if (prefix < 0 || suffix < 0 || prefix + suffix > previous.length()) {
+                    throw new InvalidObjectException("Wrong group name prefix " + prefix + " or suffix " + suffix);
+                }
+                previous = previous.substring(0, prefix) + in.readUTF()
+                           + previous.substring(previous.length() - suffix);
+                groups.add(previous);
+            }
+        }
+
+        private Object readResolve() {
+            List<GrantedAuthority> authorities = new ArrayList<>(groups.size() + 1);
+            if (authenticated) {
+                authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY2);
+            }
+            for (String group : groups) {
+                authorities.add(new SimpleGrantedAuthority(group));
+            }
+            return new SamlUserDetails(username, authorities);
+        }
+
+        private static int commonPrefix(String a, String b) {
+            int max = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < max && a.charAt(i) == b.charAt(i)) {
+                i++;
+            }
+            // do not split a surrogate pair
+            if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+                i--;
+            }
+            return i;
+        }
+
+        private static int commonSuffix(String a, String b, int prefix) {
+            int max = Math.min(a.length(), b.length()) - prefix;
+            int i = 0;
+            while (i < max && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i)) {
+                i++;
+            }
+            // do not split a surrogate pair
+            if (i > 0 && Character.isLowSurrogate(b.charAt(b.length() - i))) {
+                i--;
+            }
+            return i;
+        }
+
+        private static void writeVarInt(ObjectOutputStream out, int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private static int readVarInt(ObjectInputStream in) throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new InvalidObjectException("Malformed group name prefix");
+        }
+    }
 }
@@ -0,0 +1,66 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import hudson.model.User;
+
+/**
+ * <p>Striped locks to update the users one login at a time.</p>
+ * <p>Concurrent logins of the same user take the same lock, so the later one sees the changes of the first one
+ * and does not save the user again. The locks are picked by a hash of the user id, different users only wait
+ * for each other when their ids fall in the same stripe.</p>
+ */
+@Restricted(NoExternalUse.class)
+public final class SamlUserLocks {
+
+    /**
+     * property to set the number of locks shared by the users, it is rounded up to a power of two.
+     * -Dorg.jenkinsci.plugins.saml.SamlUserLocks.stripes=NUMBER
+     */
+    public static final String STRIPES_PROPERTY = SamlUserLocks.class.getName() + ".stripes";
+    private static final Lock[] LOCKS = createLocks(Integer.getInteger(STRIPES_PROPERTY, 256));
+
+    private SamlUserLocks() {
+    }
+
+    private static Lock[] createLocks(int stripes) {
+        int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        Lock[] locks = new Lock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    /**
+     * @param username id of the user.
+     * @return the lock of the user, it is reentrant.
+     */
+    @NonNull
+    public static Lock get(@NonNull String username) {
+        int hash = User.idStrategy().keyFor(username).hashCode();
+        // spread the high bits, as HashMap does
+        hash ^= hash >>> 16;
+        return LOCKS[hash & (LOCKS.length - 1)];
+    }
+}
@@ -0,0 +1,180 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.apache.commons.lang.StringUtils;
+import org.pac4j.saml.profile.SAML2Profile;
+import hudson.model.User;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * <p>Updates the users from SAML attribute snapshots exported from the IdP, as their logins would.</p>
+ * <p>The input is a JSON array, or a sequence of JSON objects, each object has the SAML attributes of a user,
+ * with the same names the IdP sends in the SAML Response, the values are strings or arrays of strings.
+ * The NameID of the user can be set with the <code>NameID</code> key.
+ * The snapshots are read as a stream and applied in a bounded pool of threads, each user is saved once.</p>
+ * <p>The groups are not stored, Jenkins only keeps the groups of a user when the user logs in.</p>
+ */
+final class SamlUserSync {
+    private static final Logger LOG = Logger.getLogger(SamlUserSync.class.getName());
+
+    /**
+     * property to set the number of threads that update the users.
+     * -Dorg.jenkinsci.plugins.saml.SamlUserSync.threads=NUMBER
+     */
+    public static final String THREADS_PROPERTY = SamlUserSync.class.getName() + ".threads";
+    public static final int THREADS = Math.max(1, Integer.getInteger(THREADS_PROPERTY, 4));
+
+    static final String NAME_ID = "NameID";
+
+    private static final ObjectReader READER = new ObjectMapper().readerFor(new TypeReference<Map<String, Object>>() {
+    });
+
+    private final SamlSecurityRealm realm;
+    private final SamlAttributeExtractionPlan plan;
+
+    SamlUserSync(@NonNull SamlSecurityRealm realm, @NonNull SamlAttributeExtractionPlan plan) {
+        this.realm = realm;
+        this.plan = plan;
+    }
+
+    /**
+     * @param in JSON of the SAML attribute snapshots.
+     * @return the result of the synchronization.
+     * @throws IOException if the input is not valid JSON, the snapshots read before the error are applied.
+     * @throws InterruptedException if it is interrupted while waiting for the updates.
+     */
+    @NonNull
+    Result sync(@NonNull InputStream in) throws IOException, InterruptedException {
+        Result result = new Result();
+        long start = System.nanoTime();
+        // a full queue makes the reader apply the snapshot itself, so the input is not read faster than it is applied
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(THREADS * 4),
+                new NamingThreadFactory(new DaemonThreadFactory(), "SAML user sync"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try (MappingIterator<Map<String, Object>> snapshots = READER.readValues(in)) {
+            while (snapshots.hasNextValue()) {
+                Map<String, Object> snapshot = snapshots.nextValue();
+                executor.execute(() -> apply(snapshot, result));
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOG.info("Waiting for the SAML user synchronization, " + result);
+            }
+        }
+        LOG.info("SAML user synchronization finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                 + " ms, " + result);
+        return result;
+    }
+
+    private void apply(Map<String, Object> snapshot, Result result) {
+        result.processed.incrementAndGet();
+        try {
+            SAML2Profile profile = toProfile(snapshot);
+            if (realm.getUsernameAttributeName() != null ? !profile.containsAttribute(realm.getUsernameAttributeName())
+                                                         : profile.getId() == null) {
+                LOG.warning("The SAML attribute snapshot has no username: " + snapshot.keySet());
+                result.failed.incrementAndGet();
+                return;
+            }
+            SamlLoginRecord loginRecord = plan.extract(profile);
+            if (StringUtils.isBlank(loginRecord.getUsername())) {
+                LOG.warning("The SAML attribute snapshot has a blank username: " + snapshot.keySet());
+                result.failed.incrementAndGet();
+                return;
+            }
+            User user = User.getById(loginRecord.getUsername(), true);
+            if (user != null && realm.updateUser(user, loginRecord)) {
+                result.updated.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Unable to update the user from the SAML attribute snapshot", e);
+            result.failed.incrementAndGet();
+        }
+    }
+
+    private static SAML2Profile toProfile(Map<String, Object> snapshot) {
+        SAML2Profile profile = new SAML2Profile();
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            Object value = entry.getValue();
+            if (value == null) {
+                continue;
+            }
+            if (NAME_ID.equals(entry.getKey())) {
+                profile.setId(value.toString());
+            } else if (value instanceof Collection) {
+                List<String> values = new ArrayList<>(((Collection<?>) value).size());
+                for (Object item : (Collection<?>) value) {
+                    if (item != null) {
+                        values.add(item.toString());
+                    }
+                }
+                profile.addAttribute(entry.getKey(), values);
+            } else {
+                profile.addAttribute(entry.getKey(), value.toString());
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Counters of the synchronization.
+     */
+    static final class Result {
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger updated = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+
+        int getProcessed() {
+            return processed.get();
+        }
+
+        int getUpdated() {
+            return updated.get();
+        }
+
+        int getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return "processed " + processed + " users, updated " + updated + ", failed " + failed;
+        }
+    }
+}
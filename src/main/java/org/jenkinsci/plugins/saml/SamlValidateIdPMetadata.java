@@ -1,22 +1,37 @@
 package org.jenkinsci.plugins.saml;
 
-import java.io.IOException;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.xml.XMLParserException;
-import org.apache.commons.io.IOUtils;
 import org.opensaml.saml.metadata.resolver.impl.DOMMetadataResolver;
-import org.pac4j.saml.util.Configuration;
+import org.w3c.dom.Document;
 import hudson.util.FormValidation;
 
 /**
  * validate the IdP metadata, this class is used from the configuration screen to validate the XML in the IdP Metadata textarea.
+ * <p>
+ * The last IdP Metadata validated is remembered, so validating the same document again (e.g. the periodic update
+ * downloads the same metadata) does not parse it and initialize a metadata resolver again.
  */
 public class SamlValidateIdPMetadata extends OpenSAMLWrapper<FormValidation>{
 
+    private static volatile ValidMetadata lastValid;
+
     private final String idpMetadata;
+    private final Document document;
 
     public SamlValidateIdPMetadata(String idpMetadata){
+        this(idpMetadata, null);
+    }
+
+    /**
+     * @param idpMetadata IdP Metadata.
+     * @param document IdP Metadata already parsed, it is used instead of parsing the IdP Metadata again.
+     */
+    SamlValidateIdPMetadata(@NonNull String idpMetadata, @CheckForNull Document document){
         this.idpMetadata = idpMetadata;
+        this.document = document;
     }
 
     /**
@@ -25,22 +40,56 @@ public class SamlValidateIdPMetadata extends OpenSAMLWrapper<FormValidation>{
      */
     @Override
     protected FormValidation process() {
-        try (final java.io.InputStream in = IOUtils.toInputStream(idpMetadata, "UTF-8")) {
-            final org.w3c.dom.Document inCommonMDDoc = Configuration.getParserPool().parse(in);
+        String digest = SamlParserPool.digest(idpMetadata);
+        ValidMetadata valid = lastValid;
+        if (valid != null && valid.isValid(digest, System.currentTimeMillis())) {
+            return FormValidation.ok("Success");
+        }
+        DOMMetadataResolver idpMetadataProvider = null;
+        try {
+            final Document inCommonMDDoc = document != null ? document : SamlParserPool.parse(idpMetadata);
             final org.w3c.dom.Element metadataRoot = inCommonMDDoc.getDocumentElement();
-            DOMMetadataResolver idpMetadataProvider = new DOMMetadataResolver(metadataRoot);
-            idpMetadataProvider.setParserPool(Configuration.getParserPool());
+            idpMetadataProvider = new DOMMetadataResolver(metadataRoot);
+            idpMetadataProvider.setParserPool(SamlParserPool.get());
             idpMetadataProvider.setFailFastInitialization(true);
             idpMetadataProvider.setRequireValidMetadata(true);
             idpMetadataProvider.setId(idpMetadataProvider.getClass().getCanonicalName());
             idpMetadataProvider.initialize();
-        } catch (IOException e) {
-            return FormValidation.error("The IdP Metadata not valid.", e);
+            lastValid = new ValidMetadata(digest, validUntil(metadataRoot.getAttributeNS(null, "validUntil")));
         } catch (XMLParserException e) {
             return FormValidation.error("The IdP Metadata not valid XML.", e);
         } catch (ComponentInitializationException e) {
             return FormValidation.error("The IdP Metadata not valid content.", e);
+        } finally {
+            if (idpMetadataProvider != null) {
+                idpMetadataProvider.destroy();
+            }
         }
         return FormValidation.ok("Success");
     }
+
+    private static long validUntil(String value) {
+        try {
+            return IdpMetadataRefreshStatus.parseValidUntil(value);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * IdP Metadata that passed the validation.
+     */
+    private static final class ValidMetadata {
+        private final String digest;
+        private final long validUntil;
+
+        private ValidMetadata(String digest, long validUntil) {
+            this.digest = digest;
+            this.validUntil = validUntil;
+        }
+
+        private boolean isValid(String digest, long now) {
+            return this.digest.equals(digest) && (validUntil == 0 || now < validUntil);
+        }
+    }
 }
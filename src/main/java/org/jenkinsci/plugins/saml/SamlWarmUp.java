@@ -0,0 +1,136 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+/**
+ * <p>Prepares the SAML machinery in the background when Jenkins starts, so the first login does not pay for it.</p>
+ * <p>OpenSAML initialization, the bundled keystore and the IdP Metadata parsing run concurrently, then the SP
+ * metadata is generated. The steps run in a small pool of daemon threads, Jenkins does not wait for them.</p>
+ */
+@Restricted(NoExternalUse.class)
+public final class SamlWarmUp {
+    private static final Logger LOG = Logger.getLogger(SamlWarmUp.class.getName());
+
+    /**
+     * property to disable the warm-up.
+     * -Dorg.jenkinsci.plugins.saml.SamlWarmUp.disabled=true
+     */
+    public static final String DISABLED_PROPERTY = SamlWarmUp.class.getName() + ".disabled";
+    public static final boolean DISABLED = Boolean.getBoolean(DISABLED_PROPERTY);
+
+    private static final int THREADS = 2;
+
+    private SamlWarmUp() {
+    }
+
+    /**
+     * The security realm is loaded with the global configuration, so the warm-up starts after it.
+     */
+    @Initializer(after = InitMilestone.SYSTEM_CONFIG_LOADED)
+    public static void warmUp() {
+        Jenkins jenkins = Jenkins.get();
+        if (DISABLED || !(jenkins.getSecurityRealm() instanceof SamlSecurityRealm)) {
+            return;
+        }
+        start((SamlSecurityRealm) jenkins.getSecurityRealm());
+    }
+
+    /**
+     * Start the warm-up steps.
+     * @param realm SAML security realm.
+     * @return a future completed when all the steps finish, the steps never fail.
+     */
+    static CompletableFuture<Void> start(SamlSecurityRealm realm) {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "SAML warm-up"));
+        long start = System.nanoTime();
+        SamlPluginConfig config = realm.getSamlPluginConfig();
+
+        CompletableFuture<Void> openSAML = run("OpenSAML initialization", OpenSAMLWrapper::initialize, executor);
+        CompletableFuture<Void> keyStore = run("keystore", () -> loadKeyStore(config), executor);
+        CompletableFuture<Void> idpMetadata = run("IdP Metadata parsing", () -> validateIdPMetadata(realm), executor);
+        CompletableFuture<Void> spMetadata = CompletableFuture.allOf(openSAML, keyStore)
+                .thenCompose(v -> run("SP metadata generation", () -> generateSPMetadata(config), executor));
+
+        return CompletableFuture.allOf(idpMetadata, spMetadata).whenComplete((v, e) -> {
+            executor.shutdown();
+            LOG.info("SAML warm-up finished in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        });
+    }
+
+    private static CompletableFuture<Void> run(String name, Step step, ExecutorService executor) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                step.run();
+                LOG.info("SAML warm-up " + name + " took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                         + " ms");
+            } catch (Exception e) {
+                LOG.log(Level.WARNING, "SAML warm-up " + name + " failed, it will be done on the first login", e);
+            }
+        }, executor);
+    }
+
+    private static void loadKeyStore(SamlPluginConfig config) {
+        SamlEncryptionData encryptionData = config.getEncryptionData();
+        if (encryptionData != null && StringUtils.isNotBlank(encryptionData.getCredentialsId())) {
+            SamlKeyStores.requireCredentials(encryptionData.getCredentialsId());
+        } else if (encryptionData == null || StringUtils.isBlank(encryptionData.getKeystorePath())) {
+            OpenSAMLWrapper.getBundleKeyStore().initIfNotValid();
+        }
+    }
+
+    private static void validateIdPMetadata(SamlSecurityRealm realm) throws Exception {
+        String idpMetadata = realm.getIdpMetadataConfiguration().getIdpMetadata();
+        FormValidation validation = new SamlValidateIdPMetadata(idpMetadata).get();
+        if (validation.kind != FormValidation.Kind.OK) {
+            LOG.warning("The IdP Metadata is not valid: " + validation.getMessage());
+        }
+    }
+
+    private static void generateSPMetadata(SamlPluginConfig config) {
+        if (Jenkins.get().getRootUrl() == null) {
+            LOG.fine("The Jenkins URL is not configured, the SP metadata is generated on the first request");
+            return;
+        }
+        SamlSPMetadataCache.get(config);
+    }
+
+    /**
+     * Warm-up step.
+     */
+    private interface Step {
+        void run() throws Exception;
+    }
+}
@@ -10,9 +10,11 @@ import hudson.model.AsyncAperiodicWork;
 import jenkins.model.Jenkins;
 
 /**
- * <p>This periodic work update the IdP Metadata File, the periodicof the execution is defined on the SAML Plugin configuration.</p>
- * <p>If the Preriod is set to 0 the Periodic work is mostly disabled, it will check the changes on config
+ * <p>This periodic work update the IdP Metadata File, the period of the execution is defined on the SAML Plugin configuration.</p>
+ * <p>If the Period is set to 0 the Periodic work is mostly disabled, it will check the changes on config
  * every 10 minutes to see if it is enabled again, if the period change it is re-enabled again.</p>
+ * <p>When it is enabled, it wakes up when the next download is due, see {@link IdpMetadataRefreshStatus}
+ * for how the jitter, the backoff after failures, and the IdP cache hints are applied.</p>
  */
 @Extension
 public class UpdateMetadataFromURLPeriodicWork extends AsyncAperiodicWork {
@@ -23,6 +25,8 @@ public class UpdateMetadataFromURLPeriodicWork extends AsyncAperiodicWork {
      */
     public static final String INITIAL_DELAY_PROPERTY = UpdateMetadataFromURLPeriodicWork.class.getName() + ".initialDelay";
     public static final long INITIAL_DELAY = Long.parseLong(System.getProperty(INITIAL_DELAY_PROPERTY, "10000"));
+    private static final long MIN_CHECK_PERIOD = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_CHECK_PERIOD = TimeUnit.MINUTES.toMillis(10);
 
     /**
      * {@inheritDoc}
@@ -33,16 +37,16 @@ public class UpdateMetadataFromURLPeriodicWork extends AsyncAperiodicWork {
     }
 
     /**
-     * @return the configured period, if the configured period is 0 return 10 minutes,
-     * if we are starting the Jenkins instance schedule an execution after 10 seconds.
+     * @return the time until the next download is due, between 1 and 10 minutes, if the configured period is 0
+     * return 10 minutes, if we are starting the Jenkins instance schedule an execution after 10 seconds.
      */
     @Override
     public long getRecurrencePeriod() {
-        long ret = getConfiguredPeriod();
-        if (ret == 0) {
-            ret = TimeUnit.MINUTES.toMillis(10);
+        if (getConfiguredPeriod() == 0) {
+            return MAX_CHECK_PERIOD;
         }
-        return ret;
+        long untilNextRefresh = IdpMetadataRefreshStatus.get().getNextRefresh() - System.currentTimeMillis();
+        return Math.min(Math.max(untilNextRefresh, MIN_CHECK_PERIOD), MAX_CHECK_PERIOD);
     }
 
     /**
@@ -80,7 +84,7 @@ public class UpdateMetadataFromURLPeriodicWork extends AsyncAperiodicWork {
     /**
      * {@inheritDoc}
      * <p>Connect to the URL configured on the SAML configuration to get the IdP Metadata, then download it </p>
-     * <p>if the period configured is 0 it returns directly, do nothing.</p>
+     * <p>if the period configured is 0 or the next download is not due yet it returns directly, do nothing.</p>
      */
     @Override
     protected void execute(hudson.model.TaskListener listener) {
@@ -88,13 +92,20 @@ public class UpdateMetadataFromURLPeriodicWork extends AsyncAperiodicWork {
             return;
         }
 
+        IdpMetadataRefreshStatus status = IdpMetadataRefreshStatus.get();
+        if (!status.isDue(System.currentTimeMillis())) {
+            LOG.finest("IdP Metadata update is not due yet " + status);
+            return;
+        }
+
         Jenkins j = Jenkins.get();
         if (j.getSecurityRealm() instanceof SamlSecurityRealm) {
             SamlSecurityRealm samlSecurityRealm = (SamlSecurityRealm) j.getSecurityRealm();
             try {
                 samlSecurityRealm.getIdpMetadataConfiguration().updateIdPMetadata();
             } catch (IOException | IllegalArgumentException e) {
-                LOG.log(Level.SEVERE, e.getMessage(), e);
+                LOG.log(Level.WARNING, "IdP Metadata update failed " + status.getConsecutiveFailures()
+                                       + " consecutive times, next attempt at " + status.getNextRefreshDate(), e);
             }
         }
     }
@@ -16,6 +16,7 @@ specific language governing permissions and limitations
 under the License. */
 package org.jenkinsci.plugins.saml.user;
 
+import hudson.BulkChange;
 import hudson.Extension;
 import hudson.model.Descriptor.FormException;
 import hudson.model.User;
@@ -27,10 +28,12 @@ import org.apache.commons.lang.time.FastDateFormat;
 import hudson.security.SecurityRealm;
 import jenkins.model.Jenkins;
 import org.jenkinsci.plugins.saml.SamlSecurityRealm;
+import org.jenkinsci.plugins.saml.SamlUserLocks;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
 
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.sf.json.JSONObject;
@@ -84,7 +87,7 @@ public class LoginDetailsProperty extends UserProperty {
         }
     }
 
-    public void update() {
+    public synchronized void update() {
         long now = System.currentTimeMillis();
         if (getCreateTimestamp() == 0) {
             setCreateTimestamp(now);
@@ -156,19 +159,27 @@ public class LoginDetailsProperty extends UserProperty {
             }
 
 
+            Lock lock = SamlUserLocks.get(username);
+            lock.lock();
             try {
                 User u = User.getById(username, true);
-                LoginDetailsProperty o = u.getProperty(LoginDetailsProperty.class);
-                if (o == null) {
-                    o = new LoginDetailsProperty();
-                }
-                u.addProperty(o);
-                Authentication a = Jenkins.getAuthentication2();
-                if (a.getName().equals(username)) {
-                    o.update();    // just for defensive sanity checking
+                // the property is added and updated with a single save
+                try (BulkChange bc = new BulkChange(u)) {
+                    LoginDetailsProperty o = u.getProperty(LoginDetailsProperty.class);
+                    if (o == null) {
+                        o = new LoginDetailsProperty();
+                        u.addProperty(o);
+                    }
+                    Authentication a = Jenkins.getAuthentication2();
+                    if (a.getName().equals(username)) {
+                        o.update();    // just for defensive sanity checking
+                    }
+                    bc.commit();
                 }
             } catch (java.io.IOException e) {
                 LOG.log(Level.WARNING, "Failed to record granted authorities", e);
+            } finally {
+                lock.unlock();
             }
         }
 
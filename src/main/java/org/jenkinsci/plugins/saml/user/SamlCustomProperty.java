@@ -17,6 +17,7 @@ under the License. */
 package org.jenkinsci.plugins.saml.user;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
 import edu.umd.cs.findbugs.annotations.NonNull;
@@ -39,9 +40,9 @@ import jenkins.model.Jenkins;
  */
 public class SamlCustomProperty extends UserProperty {
     /**
-     * list of custom Attributes.
+     * list of custom Attributes, it is replaced instead of changed.
      */
-    List<Attribute> attributes;
+    volatile List<Attribute> attributes;
 
     public static class Attribute extends AbstractDescribableImpl<Attribute> {
 
@@ -128,6 +129,55 @@ public class SamlCustomProperty extends UserProperty {
         this.attributes = attributes;
     }
 
+    /**
+     * Set the value of an attribute, the attribute is added if it does not exist.
+     * The list of attributes is replaced, not changed, so the views that read it during a login see either the
+     * previous attributes or the new ones. It does not save the user.
+     *
+     * @param name        name of the attribute in the SAML Response.
+     * @param displayName name to display as attribute's value label on the user profile.
+     * @param value       value of the attribute.
+     * @return true if the attributes changed.
+     */
+    public synchronized boolean updateAttribute(@NonNull String name, String displayName, String value) {
+        List<Attribute> current = new ArrayList<>(getAttributes());
+        Attribute item = new Attribute(name, displayName);
+        item.setValue(value);
+        for (int i = 0; i < current.size(); i++) {
+            Attribute attribute = current.get(i);
+            if (name.equals(attribute.getName())) {
+                if (item.equals(attribute)) {
+                    return false;
+                }
+                current.set(i, item);
+                attributes = current;
+                return true;
+            }
+        }
+        current.add(item);
+        attributes = current;
+        return true;
+    }
+
+    /**
+     * Remove the attributes that are not in the list of names, the list of attributes is replaced.
+     * It does not save the user.
+     *
+     * @param names names of the attributes to keep.
+     * @return true if the attributes changed.
+     */
+    public synchronized boolean retainAttributes(@NonNull Collection<String> names) {
+        if (attributes == null || attributes.isEmpty()) {
+            return false;
+        }
+        List<Attribute> current = new ArrayList<>(attributes);
+        if (!current.removeIf(attribute -> !names.contains(attribute.getName()))) {
+            return false;
+        }
+        attributes = current;
+        return true;
+    }
+
     @Override
     public UserProperty reconfigure(StaplerRequest2 req, JSONObject form) {
         return this;
@@ -0,0 +1,132 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.util.logging.Logger;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the CPU a login spends with the private key of each algorithm of the generated keystore, the signature
+ * of the AuthnRequest and the decryption of the key of an encrypted assertion.
+ */
+public class BundleKeyStoreBenchmarkTest {
+    private static final Logger LOG = Logger.getLogger(BundleKeyStoreBenchmarkTest.class.getName());
+
+    private static final int ITERATIONS = Integer.getInteger("saml.benchmark.iterations", 20);
+
+    @BeforeClass
+    public static void registerProvider() {
+        if (Security.getProvider(BundleKeyStore.PROVIDER) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+    }
+
+    @Test
+    public void loginCpuPerAlgorithm() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        byte[] authnRequest = ("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\" ID=\"_"
+                               + "0".repeat(40) + "\"/>").repeat(4).getBytes(StandardCharsets.UTF_8);
+        for (BundleKeyStore.KeyAlgorithm algorithm : BundleKeyStore.KeyAlgorithm.values()) {
+            KeyPair keyPair = algorithm.generate();
+            assertEquals(algorithm.getKeyAlgorithm(), keyPair.getPrivate().getAlgorithm().replace("ECDSA", "EC"));
+
+            Decryption decryption = prepareDecryption(algorithm, keyPair);
+            // warm up
+            assertTrue(verify(algorithm, keyPair, authnRequest, sign(algorithm, keyPair, authnRequest)));
+            decryption.run();
+
+            long start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sign(algorithm, keyPair, authnRequest);
+            }
+            long sign = (threads.getCurrentThreadCpuTime() - start) / ITERATIONS;
+
+            start = threads.getCurrentThreadCpuTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                decryption.run();
+            }
+            long decrypt = (threads.getCurrentThreadCpuTime() - start) / ITERATIONS;
+
+            LOG.info(String.format("%s: sign AuthnRequest %d µs, decrypt assertion key %d µs, login %d µs of CPU",
+                                   algorithm, sign / 1000, decrypt / 1000, (sign + decrypt) / 1000));
+        }
+    }
+
+    private static byte[] sign(BundleKeyStore.KeyAlgorithm algorithm, KeyPair keyPair, byte[] data) throws Exception {
+        Signature signer = Signature.getInstance(algorithm.getCertificateSignatureAlgorithm());
+        signer.initSign(keyPair.getPrivate());
+        signer.update(data);
+        return signer.sign();
+    }
+
+    private static boolean verify(BundleKeyStore.KeyAlgorithm algorithm, KeyPair keyPair, byte[] data,
+                                  byte[] signature) throws Exception {
+        Signature verifier = Signature.getInstance(algorithm.getCertificateSignatureAlgorithm());
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(data);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * The IdP wraps the key of the assertion with RSA-OAEP for the RSA keys, and agrees it with ECDH-ES for the EC
+     * keys. The IdP side is done once, only the private key operation of the SP is measured.
+     */
+    private static Decryption prepareDecryption(BundleKeyStore.KeyAlgorithm algorithm, KeyPair keyPair)
+            throws Exception {
+        if (BundleKeyStore.KEY_ALG.equals(algorithm.getKeyAlgorithm())) {
+            byte[] key = new byte[16];
+            Cipher wrap = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+            wrap.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+            byte[] wrapped = wrap.doFinal(key);
+            return () -> {
+                Cipher unwrap = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+                unwrap.init(Cipher.DECRYPT_MODE, keyPair.getPrivate());
+                assertArrayEquals(key, unwrap.doFinal(wrapped));
+            };
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(((ECPublicKey) keyPair.getPublic()).getParams());
+        KeyPair ephemeral = generator.generateKeyPair();
+        return () -> {
+            KeyAgreement agreement = KeyAgreement.getInstance("ECDH");
+            agreement.init(keyPair.getPrivate());
+            agreement.doPhase(ephemeral.getPublic(), true);
+            assertTrue(agreement.generateSecret().length > 0);
+        };
+    }
+
+    @FunctionalInterface
+    private interface Decryption {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,92 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the renewal of the generated keystore.
+ */
+public class BundleKeyStoreTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @After
+    public void tearDown() {
+        System.clearProperty(BundleKeyStore.KEY_VALIDITY_PROPERTY);
+    }
+
+    @Test
+    public void expiredKeyIsRenewedOnce() throws Exception {
+        System.setProperty(BundleKeyStore.KEY_VALIDITY_PROPERTY, "-1");
+        BundleKeyStore ks = new BundleKeyStore();
+        ks.init();
+        assertTrue(ks.isExpired());
+        System.clearProperty(BundleKeyStore.KEY_VALIDITY_PROPERTY);
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Boolean>> renewals = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                renewals.add(executor.submit(() -> {
+                    start.await();
+                    return ks.renewIfExpired();
+                }));
+            }
+            start.countDown();
+            int renewed = 0;
+            for (Future<Boolean> renewal : renewals) {
+                renewed += renewal.get() ? 1 : 0;
+            }
+            assertEquals(1, renewed);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertFalse(ks.isExpired());
+        assertFalse(ks.renewIfExpired());
+    }
+
+    @Test
+    public void failedGenerationIsNotRetriedOnEveryClient() throws Exception {
+        // a directory in place of the keystore file makes the generation fail
+        File keystore = new File(jenkinsRule.jenkins.getRootDir(), BundleKeyStore.SAML_JENKINS_KEYSTORE_JKS);
+        assertTrue(keystore.mkdirs());
+        BundleKeyStore ks = new BundleKeyStore();
+        ks.init();
+        assertTrue(ks.isUsingDemoKeyStore());
+        assertEquals(BundleKeyStore.KeyAlgorithm.RSA_2048, ks.getKeyAlgorithm());
+        assertFalse(ks.initIfNotValid());
+        assertTrue(ks.isUsingDemoKeyStore());
+    }
+}
@@ -0,0 +1,305 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the IdP Metadata downloads against a slow or misbehaving server.
+ */
+public class IdpMetadataDownloadTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private HttpServer server;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger metadataRequests = new AtomicInteger();
+
+    @Before
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/slow", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("<md:EntityDescriptor".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                release.await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.createContext("/trickle", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write("<md:EntityDescriptor".getBytes(StandardCharsets.UTF_8));
+                while (!release.await(100, TimeUnit.MILLISECONDS)) {
+                    out.write(' ');
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.createContext("/big", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                byte[] chunk = new byte[1024];
+                for (int i = 0; i < 64; i++) {
+                    out.write(chunk);
+                }
+            }
+        });
+        server.createContext("/metadata", exchange -> {
+            metadataRequests.incrementAndGet();
+            byte[] metadata;
+            try (InputStream in = getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")) {
+                metadata = IOUtils.toByteArray(in);
+            }
+            exchange.sendResponseHeaders(200, metadata.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(metadata);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        release.countDown();
+        server.stop(0);
+        System.clearProperty(IdpMetadataDownload.READ_TIMEOUT_PROPERTY);
+        System.clearProperty(IdpMetadataDownload.TOTAL_TIMEOUT_PROPERTY);
+        System.clearProperty(IdpMetadataDownload.MAX_SIZE_PROPERTY);
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    public void readTimeout() {
+        System.setProperty(IdpMetadataDownload.READ_TIMEOUT_PROPERTY, "500");
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> {
+            try (IdpMetadataDownload download = IdpMetadataDownload.open(url("/slow"))) {
+                IOUtils.toByteArray(download.getInputStream());
+            }
+        });
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(10L));
+    }
+
+    @Test
+    public void totalTimeout() {
+        System.setProperty(IdpMetadataDownload.READ_TIMEOUT_PROPERTY, "500");
+        System.setProperty(IdpMetadataDownload.TOTAL_TIMEOUT_PROPERTY, "1000");
+        long start = System.nanoTime();
+        SocketTimeoutException e = assertThrows(SocketTimeoutException.class, () -> {
+            try (IdpMetadataDownload download = IdpMetadataDownload.open(url("/trickle"))) {
+                IOUtils.toByteArray(download.getInputStream());
+            }
+        });
+        assertThat(e.getMessage(), containsString("took more than 1000 ms"));
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(10L));
+    }
+
+    @Test
+    public void sizeLimit() {
+        System.setProperty(IdpMetadataDownload.MAX_SIZE_PROPERTY, "4096");
+        IOException e = assertThrows(IOException.class, () -> {
+            try (IdpMetadataDownload download = IdpMetadataDownload.open(url("/big"))) {
+                IOUtils.toByteArray(download.getInputStream());
+            }
+        });
+        assertThat(e.getMessage(), containsString("bigger than the maximum allowed 4096"));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        try (IdpMetadataDownload download = IdpMetadataDownload.open(url("/slow"))) {
+            InputStream in = download.getInputStream();
+            assertTrue(in.read() != -1);
+            Thread canceller = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                download.cancel();
+            });
+            canceller.start();
+            long start = System.nanoTime();
+            assertThrows(IOException.class, () -> IOUtils.toByteArray(in));
+            assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(10L));
+            assertTrue(download.isCancelled());
+            canceller.join();
+        }
+    }
+
+    @Test
+    public void updateFailureIsRecorded() {
+        System.setProperty(IdpMetadataDownload.READ_TIMEOUT_PROPERTY, "500");
+        IdpMetadataRefreshStatus status = IdpMetadataRefreshStatus.get();
+        int failures = status.getConsecutiveFailures();
+        IdpMetadataConfiguration configuration = new IdpMetadataConfiguration(url("/slow"), 10L);
+        assertThrows(IOException.class, configuration::updateIdPMetadata);
+        assertEquals(failures + 1, status.getConsecutiveFailures());
+    }
+
+    @Test
+    public void unchangedMetadataIsNotWrittenAgain() throws IOException {
+        IdpMetadataConfiguration configuration = new IdpMetadataConfiguration(url("/metadata"), 10L);
+        configuration.updateIdPMetadata();
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        assertThat(configuration.getIdpMetadata(), containsString("EntityDescriptor"));
+        assertTrue(idpMetadataFile.setLastModified(0));
+
+        configuration.updateIdPMetadata();
+        assertEquals(0, idpMetadataFile.lastModified());
+        assertEquals(0, IdpMetadataRefreshStatus.get().getConsecutiveFailures());
+    }
+
+    @Test
+    public void realmIsCreatedWithoutDownloading() throws IOException {
+        long start = System.nanoTime();
+        realm(url("/slow"));
+        assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), lessThan(10L));
+    }
+
+    @Test
+    public void unchangedUrlKeepsTheIdPMetadataFile() throws IOException {
+        SamlSecurityRealm realm = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        assertTrue(idpMetadataFile.setLastModified(0));
+        int requests = metadataRequests.get();
+
+        SamlSecurityRealm reloaded = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(reloaded);
+        reloaded.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        assertEquals(requests, metadataRequests.get());
+        assertEquals(0, idpMetadataFile.lastModified());
+    }
+
+    @Test
+    public void missingIdPMetadataFileIsDownloadedOnLogin() throws IOException {
+        SamlSecurityRealm realm = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        assertTrue(idpMetadataFile.delete());
+
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        assertThat(realm.getIdpMetadataConfiguration().getIdpMetadata(), containsString("EntityDescriptor"));
+    }
+
+    @Test
+    public void failedDownloadFromNewUrlFailsTheLogin() throws IOException {
+        SamlSecurityRealm realm = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        int failures = IdpMetadataRefreshStatus.get().getConsecutiveFailures();
+
+        SamlSecurityRealm changed = realm(url("/missing"));
+        jenkinsRule.jenkins.setSecurityRealm(changed);
+        // the IdP Metadata file of the previous URL is not used
+        IOException e = assertThrows(IOException.class, () -> changed.getIdpMetadataConfiguration().awaitIdPMetadataFile());
+        assertThat(e.getMessage(), containsString(url("/missing")));
+        assertEquals(failures + 1, IdpMetadataRefreshStatus.get().getConsecutiveFailures());
+    }
+
+    @Test
+    public void replacedConfigurationDoesNotWriteTheIdPMetadataFile() throws IOException {
+        SamlSecurityRealm realm = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+
+        String inline;
+        try (InputStream in = getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")) {
+            inline = IOUtils.toString(in, StandardCharsets.UTF_8) + "<!-- inline -->";
+        }
+        SamlSecurityRealm replacement = new SamlSecurityRealm(new IdpMetadataConfiguration(inline),
+                "displayName", "groups", 10000, "uid", "email", "/logout", null, null, "none",
+                SAML2_REDIRECT_BINDING_URI, Collections.emptyList());
+        jenkinsRule.jenkins.setSecurityRealm(replacement);
+        replacement.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+
+        // a download of the replaced configuration that finishes late is discarded
+        realm.getIdpMetadataConfiguration().updateIdPMetadata();
+        assertThat(realm.getIdpMetadataConfiguration().getIdpMetadata(), containsString("<!-- inline -->"));
+    }
+
+    @Test
+    public void realmThatIsNotInstalledKeepsTheLiveOne() throws IOException {
+        SamlSecurityRealm realm = realm(url("/metadata"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        realm.getIdpMetadataConfiguration().awaitIdPMetadataFile();
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        assertTrue(idpMetadataFile.delete());
+
+        // bound from a form that fails the validation, or validated by Configuration as Code, never installed
+        realm(url("/missing"));
+        realm.getIdpMetadataConfiguration().updateIdPMetadata();
+        assertTrue(idpMetadataFile.exists());
+    }
+
+    @Test
+    public void failedDownloadFailsTheNextLoginsAtOnce() throws IOException {
+        System.setProperty(IdpMetadataDownload.READ_TIMEOUT_PROPERTY, "2000");
+        SamlSecurityRealm realm = realm(url("/slow"));
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        assertThrows(IOException.class, () -> realm.getIdpMetadataConfiguration().awaitIdPMetadataFile());
+
+        // the retry is not due yet, the login does not wait for a download
+        long start = System.nanoTime();
+        assertThrows(IOException.class, () -> realm.getIdpMetadataConfiguration().awaitIdPMetadataFile());
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+    }
+
+    private static SamlSecurityRealm realm(String url) throws IOException {
+        return new SamlSecurityRealm(new IdpMetadataConfiguration(url, 10L), "displayName", "groups", 10000, "uid",
+                "email", "/logout", null, null, "none", SAML2_REDIRECT_BINDING_URI,
+                Collections.emptyList());
+    }
+}
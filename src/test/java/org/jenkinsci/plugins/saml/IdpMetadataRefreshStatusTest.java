@@ -0,0 +1,136 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the scheduling of the IdP Metadata downloads.
+ */
+public class IdpMetadataRefreshStatusTest {
+
+    private static final long PERIOD = TimeUnit.MINUTES.toMillis(10);
+
+    @Test
+    public void backoffAfterFailures() {
+        long now = System.currentTimeMillis();
+        assertEquals(PERIOD, IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, 0, 0, now));
+        assertEquals(TimeUnit.MINUTES.toMillis(1), IdpMetadataRefreshStatus.computeDelay(PERIOD, 1, 0, 0, now));
+        assertEquals(TimeUnit.MINUTES.toMillis(2), IdpMetadataRefreshStatus.computeDelay(PERIOD, 2, 0, 0, now));
+        assertEquals(TimeUnit.MINUTES.toMillis(8), IdpMetadataRefreshStatus.computeDelay(PERIOD, 4, 0, 0, now));
+        // the retries never wait longer than the period
+        assertEquals(PERIOD, IdpMetadataRefreshStatus.computeDelay(PERIOD, 6, 0, 0, now));
+        assertEquals(PERIOD, IdpMetadataRefreshStatus.computeDelay(PERIOD, 50, 0, 0, now));
+        long day = TimeUnit.DAYS.toMillis(1);
+        assertEquals(TimeUnit.MINUTES.toMillis(32), IdpMetadataRefreshStatus.computeDelay(day, 6, 0, 0, now));
+        assertEquals(IdpMetadataRefreshStatus.MAX_BACKOFF, IdpMetadataRefreshStatus.computeDelay(day, 50, 0, 0, now));
+    }
+
+    @Test
+    public void cacheHints() {
+        long now = System.currentTimeMillis();
+        long hour = TimeUnit.HOURS.toMillis(1);
+        assertEquals(hour, IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, hour, 0, now));
+        assertEquals(PERIOD, IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, TimeUnit.MINUTES.toMillis(1), 0, now));
+        assertEquals(IdpMetadataRefreshStatus.MAX_CACHE_HINT,
+                     IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, TimeUnit.DAYS.toMillis(30), 0, now));
+        // refresh before the metadata expires
+        assertEquals(TimeUnit.MINUTES.toMillis(3),
+                     IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, hour, now + TimeUnit.MINUTES.toMillis(6), now));
+        assertEquals(IdpMetadataRefreshStatus.MIN_DELAY, IdpMetadataRefreshStatus.computeDelay(PERIOD, 0, 0, now - 1, now));
+    }
+
+    @Test
+    public void jitter() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            long delay = IdpMetadataRefreshStatus.jitter(PERIOD, random);
+            assertThat(delay, greaterThanOrEqualTo(PERIOD));
+            assertThat(delay, lessThanOrEqualTo(PERIOD + PERIOD / 100 * IdpMetadataRefreshStatus.JITTER_PERCENT));
+        }
+    }
+
+    @Test
+    public void firstRefreshIsSpread() {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < 100; i++) {
+            long first = IdpMetadataRefreshStatus.firstRefresh(now, random);
+            assertThat(first, greaterThanOrEqualTo(now));
+            assertThat(first, lessThan(now + IdpMetadataRefreshStatus.MIN_DELAY));
+            min = Math.min(min, first);
+            max = Math.max(max, first);
+        }
+        assertThat(max - min, greaterThan(IdpMetadataRefreshStatus.MIN_DELAY / 2));
+    }
+
+    @Test
+    public void parseHints() {
+        assertEquals(TimeUnit.SECONDS.toMillis(3600), IdpMetadataRefreshStatus.parseMaxAge("public, max-age=3600"));
+        assertEquals(0, IdpMetadataRefreshStatus.parseMaxAge("no-cache, max-age=3600"));
+        assertEquals(0, IdpMetadataRefreshStatus.parseMaxAge(null));
+        assertEquals(TimeUnit.HOURS.toMillis(6), IdpMetadataRefreshStatus.parseCacheDuration("PT6H", System.currentTimeMillis()));
+        assertEquals(1893456000000L, IdpMetadataRefreshStatus.parseValidUntil("2030-01-01T00:00:00Z"));
+    }
+
+    @Test
+    public void recordSuccessAndFailure() {
+        IdpMetadataRefreshStatus status = new IdpMetadataRefreshStatus();
+        assertTrue(status.isDue(System.currentTimeMillis() + IdpMetadataRefreshStatus.MIN_DELAY));
+
+        status.recordFailure(PERIOD, new IOException("IdP down"));
+        assertEquals(1, status.getConsecutiveFailures());
+        assertEquals("IdP down", status.getLastError());
+        assertFalse(status.isDue(System.currentTimeMillis()));
+
+        long before = System.currentTimeMillis();
+        status.recordSuccess(PERIOD, "max-age=60", "PT1H", 0);
+        assertEquals(0, status.getConsecutiveFailures());
+        assertThat(status.getNextRefresh(), greaterThan(before + TimeUnit.MINUTES.toMillis(59)));
+        assertThat(status.getNextRefresh(), lessThan(before + TimeUnit.MINUTES.toMillis(67)));
+    }
+
+    @Test
+    public void reset() {
+        IdpMetadataRefreshStatus status = new IdpMetadataRefreshStatus();
+        for (int i = 0; i < 5; i++) {
+            status.recordFailure(PERIOD, new IOException("IdP down"));
+        }
+        assertFalse(status.isDue(System.currentTimeMillis() + IdpMetadataRefreshStatus.MIN_DELAY));
+
+        status.reset();
+        assertEquals(0, status.getConsecutiveFailures());
+        assertEquals(0, status.getLastFailure());
+        assertNull(status.getLastError());
+        assertTrue(status.isDue(System.currentTimeMillis() + IdpMetadataRefreshStatus.MIN_DELAY));
+    }
+}
@@ -0,0 +1,100 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+/**
+ * Test the checks done to the IdP Metadata while it is downloaded.
+ */
+public class IdpMetadataStreamValidatorTest {
+
+    private static final String MD = "xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\"";
+
+    private static IllegalArgumentException invalid(String xml) {
+        return assertThrows(IllegalArgumentException.class,
+                            () -> IdpMetadataStreamValidator.validate(
+                                    IOUtils.toInputStream(xml, StandardCharsets.UTF_8), System.currentTimeMillis()));
+    }
+
+    @Test
+    public void validMetadata() throws IOException {
+        byte[] metadata;
+        try (InputStream in = getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")) {
+            metadata = IOUtils.toByteArray(Objects.requireNonNull(in));
+        }
+        IdpMetadataStreamValidator.Result result = IdpMetadataStreamValidator.validate(
+                new ByteArrayInputStream(metadata), System.currentTimeMillis());
+        assertEquals(new String(metadata, StandardCharsets.UTF_8),
+                     IOUtils.toString(result.getInputStream(), StandardCharsets.UTF_8));
+
+        result = IdpMetadataStreamValidator.validate(IOUtils.toInputStream(
+                "<md:EntitiesDescriptor " + MD + " cacheDuration=\"PT6H\" validUntil=\"2100-01-01T00:00:00Z\">"
+                + "<md:EntityDescriptor entityID=\"idp\"/></md:EntitiesDescriptor>", StandardCharsets.UTF_8),
+                System.currentTimeMillis());
+        assertEquals("PT6H", result.getCacheDuration());
+        assertEquals(4102444800000L, result.getValidUntil());
+    }
+
+    @Test
+    public void invalidMetadata() {
+        assertThat(invalid("<html><body>Service Unavailable</body></html>").getMessage(),
+                   containsString("root element"));
+        assertThat(invalid("<md:EntityDescriptor " + MD + "/>").getMessage(), containsString("entityID"));
+        assertThat(invalid("<md:EntityDescriptor " + MD + " entityID=\"idp\" validUntil=\"2000-01-01T00:00:00Z\"/>")
+                           .getMessage(), containsString("expired"));
+        assertThat(invalid("<md:EntityDescriptor " + MD + " entityID=\"idp\"><ds:X509Certificate "
+                           + "xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\">bm90IGEgY2VydA==</ds:X509Certificate>"
+                           + "</md:EntityDescriptor>").getMessage(), containsString("X509Certificate"));
+        assertThat(invalid("<md:EntityDescriptor " + MD + " entityID=\"idp\">").getMessage(), containsString("not valid XML"));
+    }
+
+    @Test
+    public void abortEarly() {
+        CountingInputStream endless = new CountingInputStream();
+        InputStream in = new SequenceInputStream(
+                IOUtils.toInputStream("<html><body>", StandardCharsets.UTF_8), endless);
+        assertThrows(IllegalArgumentException.class, () -> IdpMetadataStreamValidator.validate(in, System.currentTimeMillis()));
+        assertThat(endless.count, lessThan(1024L * 1024));
+    }
+
+    /**
+     * Stream of spaces that never ends.
+     */
+    private static class CountingInputStream extends InputStream {
+        private long count;
+
+        @Override
+        public int read() {
+            count++;
+            return ' ';
+        }
+    }
+}
@@ -19,6 +19,8 @@ package org.jenkinsci.plugins.saml;
 
 import hudson.util.Secret;
 import org.apache.commons.io.IOUtils;
+import org.htmlunit.Page;
+import org.htmlunit.WebRequest;
 import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -30,12 +32,18 @@ import jakarta.servlet.ServletException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
 
 import static org.hamcrest.core.StringContains.containsString;
+import static org.hamcrest.Matchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.when;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
 import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
 
 /**
@@ -100,4 +108,82 @@ public class OpenSamlWrapperTest {
         assertThat(result, containsString("<md:SPSSODescriptor"));
         assertThat(result, containsString("<ds:X509Certificate>"));
     }
+
+    @Test
+    public void metadataCached() throws Exception {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream(
+                "org/jenkinsci" + "/plugins/saml" + "/OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        SamlSecurityRealm samlSecurity = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "none",SAML2_REDIRECT_BINDING_URI,
+                java.util.Collections.emptyList());
+        jenkinsRule.jenkins.setSecurityRealm(samlSecurity);
+        SamlSPMetadataCache.invalidate();
+        SamlSPMetadata spMetadata = SamlSPMetadataCache.get(samlSecurity.getSamlPluginConfig());
+        assertSame(spMetadata, SamlSPMetadataCache.get(samlSecurity.getSamlPluginConfig()));
+
+        try (JenkinsRule.WebClient wc = jenkinsRule.createWebClient()) {
+            Page page = wc.goTo("securityRealm/metadata", "application/samlmetadata+xml");
+            assertEquals(spMetadata.getETag(), page.getWebResponse().getResponseHeaderValue("ETag"));
+            assertThat(page.getWebResponse().getResponseHeaderValue("Cache-Control"), containsString("max-age="));
+            assertThat(page.getWebResponse().getContentAsString(), containsString("<md:SPSSODescriptor"));
+
+            WebRequest request = new WebRequest(new URL(jenkinsRule.getURL(), "securityRealm/metadata"));
+            request.setAdditionalHeader("If-None-Match", "\"other\", " + spMetadata.getETag());
+            assertEquals(304, wc.getPage(request).getWebResponse().getStatusCode());
+        }
+
+        jenkinsRule.jenkins.setSecurityRealm(new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "none",SAML2_POST_BINDING_URI,
+                java.util.Collections.emptyList()));
+        SamlSecurityRealm updated = (SamlSecurityRealm) jenkinsRule.jenkins.getSecurityRealm();
+        assertNotEquals(SamlSPMetadataCache.key(samlSecurity.getSamlPluginConfig()),
+                        SamlSPMetadataCache.key(updated.getSamlPluginConfig()));
+    }
+
+    @Test
+    public void metadataSigned() throws IOException {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream(
+                "org/jenkinsci" + "/plugins/saml/" + "OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        BundleKeyStore ks = new BundleKeyStore();
+        SamlEncryptionData encryptionData = new SamlEncryptionData(ks.getKeystorePath(),
+                Secret.fromString(ks.getKsPassword()), Secret.fromString(ks.getKsPkPassword()), ks.getKsPkAlias(),
+                                                                   false, true);
+        encryptionData.setSignMetadata(true);
+        SamlSecurityRealm samlSecurity = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                encryptionData, "none",SAML2_REDIRECT_BINDING_URI,
+                java.util.Collections.emptyList());
+        jenkinsRule.jenkins.setSecurityRealm(samlSecurity);
+        SamlSPMetadata spMetadata = SamlSPMetadataCache.get(samlSecurity.getSamlPluginConfig());
+        assertThat(spMetadata.getMetadata(), containsString("Signature>"));
+        assertThat(spMetadata.getMetadata(), containsString("<md:SPSSODescriptor"));
+        assertSame(spMetadata, SamlSPMetadataCache.get(samlSecurity.getSamlPluginConfig()));
+    }
+
+    @Test
+    public void metadataKeyHashesThePasswords() throws IOException {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(this.getClass().getClassLoader().getResourceAsStream(
+                "org/jenkinsci" + "/plugins/saml/" + "OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        String key = SamlSPMetadataCache.key(new SamlPluginConfig("displayName", "groups", 10000, "email",
+                new IdpMetadataConfiguration(metadata), "none", "uid", "/logout", SAML2_REDIRECT_BINDING_URI,
+                new SamlEncryptionData("/keystore.jks", Secret.fromString("first-password"),
+                                       Secret.fromString("first-password"), "alias", false, true), null));
+        String changed = SamlSPMetadataCache.key(new SamlPluginConfig("displayName", "groups", 10000, "email",
+                new IdpMetadataConfiguration(metadata), "none", "uid", "/logout", SAML2_REDIRECT_BINDING_URI,
+                new SamlEncryptionData("/keystore.jks", Secret.fromString("second-password"),
+                                       Secret.fromString("second-password"), "alias", false, true), null));
+        assertNotEquals(key, changed);
+        assertThat(key, not(containsString("first-password")));
+    }
 }
@@ -0,0 +1,106 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.pac4j.saml.client.SAML2Client;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the SAML2Client is built once per version of the configuration, IdP metadata and keystore.
+ */
+public class SamlClientCacheTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Test
+    public void clientIsShared() throws Exception {
+        SamlSecurityRealm realm = configure(SAML2_REDIRECT_BINDING_URI);
+        AtomicInteger builds = new AtomicInteger();
+        Supplier<SAML2Client> factory = factory(realm, builds);
+
+        SAML2Client client = SamlClientCache.get(realm.getSamlPluginConfig(), factory);
+        assertSame(client, SamlClientCache.get(realm.getSamlPluginConfig(), factory));
+        assertEquals(1, builds.get());
+
+        SamlClientCache.idpMetadataChanged();
+        SAML2Client updated = SamlClientCache.get(realm.getSamlPluginConfig(), factory);
+        assertNotSame(client, updated);
+        assertEquals(2, builds.get());
+
+        realm = configure(SAML2_POST_BINDING_URI);
+        assertNotSame(updated, SamlClientCache.get(realm.getSamlPluginConfig(), factory(realm, builds)));
+        assertEquals(3, builds.get());
+    }
+
+    @Test
+    public void unchangedConfigurationKeepsTheClient() throws Exception {
+        SamlSecurityRealm realm = configure(SAML2_REDIRECT_BINDING_URI);
+        AtomicInteger builds = new AtomicInteger();
+        SAML2Client client = SamlClientCache.get(realm.getSamlPluginConfig(), factory(realm, builds));
+
+        realm = configure(SAML2_REDIRECT_BINDING_URI);
+        assertSame(client, SamlClientCache.get(realm.getSamlPluginConfig(), factory(realm, builds)));
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        SamlSecurityRealm realm = configure(SAML2_REDIRECT_BINDING_URI);
+        AtomicInteger builds = new AtomicInteger();
+        Supplier<SAML2Client> factory = factory(realm, builds);
+
+        SAML2Client client = SamlClientCache.get(realm.getSamlPluginConfig(), factory);
+        SamlClientCache.invalidate();
+        assertNotSame(client, SamlClientCache.get(realm.getSamlPluginConfig(), factory));
+        assertEquals(2, builds.get());
+    }
+
+    private static Supplier<SAML2Client> factory(SamlSecurityRealm realm, AtomicInteger builds) {
+        return () -> {
+            builds.incrementAndGet();
+            return new SamlSPMetadataWrapper(realm.getSamlPluginConfig(), null, null).createSAML2Client();
+        };
+    }
+
+    private SamlSecurityRealm configure(String binding) throws Exception {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        SamlSecurityRealm realm = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "none", binding,
+                Collections.emptyList());
+        jenkinsRule.jenkins.setSecurityRealm(realm);
+        return realm;
+    }
+}
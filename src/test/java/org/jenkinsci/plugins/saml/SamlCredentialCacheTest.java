@@ -0,0 +1,82 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.After;
+import org.junit.Test;
+import org.opensaml.security.credential.Credential;
+import org.pac4j.saml.crypto.CredentialProvider;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test the private key is resolved once per keystore version.
+ */
+public class SamlCredentialCacheTest {
+
+    @After
+    public void tearDown() {
+        SamlCredentialCache.invalidate();
+    }
+
+    @Test
+    public void credentialIsResolvedOnce() {
+        CredentialProvider keystore = mock(CredentialProvider.class);
+        Credential credential = mock(Credential.class);
+        when(keystore.getCredential()).thenReturn(credential);
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<CredentialProvider> factory = () -> {
+            loads.incrementAndGet();
+            return keystore;
+        };
+
+        CredentialProvider provider = SamlCredentialCache.get("keystore.jks@1:100#alias", factory);
+        assertSame(provider, SamlCredentialCache.get("keystore.jks@1:100#alias", factory));
+        for (int i = 0; i < 10; i++) {
+            assertSame(credential, provider.getCredential());
+        }
+        assertEquals(1, loads.get());
+        verify(keystore, times(1)).getCredential();
+    }
+
+    @Test
+    public void keyRotation() {
+        CredentialProvider keystore = mock(CredentialProvider.class);
+        when(keystore.getCredential()).thenReturn(mock(Credential.class));
+        AtomicInteger loads = new AtomicInteger();
+        Supplier<CredentialProvider> factory = () -> {
+            loads.incrementAndGet();
+            return keystore;
+        };
+
+        CredentialProvider provider = SamlCredentialCache.get("keystore.jks@1:100#alias", factory);
+        provider.getCredential();
+        CredentialProvider rotated = SamlCredentialCache.get("keystore.jks@2:120#alias", factory);
+        assertNotSame(provider, rotated);
+        rotated.getCredential();
+        assertEquals(2, loads.get());
+        verify(keystore, times(2)).getCredential();
+    }
+}
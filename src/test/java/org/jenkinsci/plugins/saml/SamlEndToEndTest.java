@@ -0,0 +1,234 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.apache.commons.io.FileUtils;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.Page;
+import org.htmlunit.WebRequest;
+import org.htmlunit.html.HtmlForm;
+import org.htmlunit.html.HtmlPage;
+import org.htmlunit.util.NameValuePair;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.TestExtension;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.mockito.Mockito;
+import hudson.ExtensionList;
+import hudson.model.User;
+import hudson.tasks.Mailer;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+import jenkins.security.SecurityListener;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Logins against the {@link TestSamlIdp}, from the commenceLogin to the finishLogin, without a real IdP.
+ */
+public class SamlEndToEndTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private TestSamlIdp idp;
+
+    @Before
+    public void setUp() throws Exception {
+        idp = new TestSamlIdp()
+                .user("alice", "Alice Admin", "alice@example.com", "admins", "users")
+                .user("bob", "Bob Reader", "bob@example.com", "users");
+        jenkinsRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.ADMINISTER).everywhere().to("admins")
+                .grant(Jenkins.READ).everywhere().to("users"));
+    }
+
+    @After
+    public void tearDown() {
+        idp.close();
+    }
+
+    @Test
+    public void loginWithRedirectBinding() throws Exception {
+        configureRealm(SAML2_REDIRECT_BINDING_URI, null);
+        HtmlPage page = login("alice");
+        assertThat(page.asNormalizedText(), containsString("Alice Admin"));
+        assertThat(page.asNormalizedText(), containsString("Manage Jenkins"));
+
+        User user = User.getById("alice", false);
+        assertNotNull(user);
+        assertEquals("Alice Admin", user.getFullName());
+        assertEquals("alice@example.com", user.getProperty(Mailer.UserProperty.class).getAddress());
+    }
+
+    @Test
+    public void loginWithPostBinding() throws Exception {
+        configureRealm(SAML2_POST_BINDING_URI, null);
+        HtmlPage page = login("bob");
+        assertThat(page.asNormalizedText(), containsString("Bob Reader"));
+        assertThat(page.asNormalizedText(), not(containsString("Manage Jenkins")));
+    }
+
+    @Test
+    public void loginWithDownloadedIdPMetadata() throws Exception {
+        configureRealm(new IdpMetadataConfiguration(idp.getMetadataUrl(), 10L), SAML2_REDIRECT_BINDING_URI, null);
+        HtmlPage page = login("alice");
+        assertThat(page.asNormalizedText(), containsString("Alice Admin"));
+
+        File idpMetadataFile = new File(SamlSecurityRealm.getIDPMetadataFilePath());
+        assertThat(FileUtils.readFileToString(idpMetadataFile, StandardCharsets.UTF_8),
+                   containsString(idp.getEntityId()));
+        assertEquals(0, IdpMetadataRefreshStatus.get().getConsecutiveFailures());
+    }
+
+    @Test
+    public void loginWithEncryptedAssertion() throws Exception {
+        File keystore = new File(jenkinsRule.jenkins.getRootDir(), "saml-key.jks");
+        FileUtils.copyURLToFile(Objects.requireNonNull(getClass().getResource("LiveTest/saml-key.jks")), keystore);
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream("LiveTest/saml-key.jks")) {
+            ks.load(in, "changeit".toCharArray());
+        }
+        idp.encryptFor((X509Certificate) ks.getCertificate(ks.aliases().nextElement()));
+        configureRealm(SAML2_REDIRECT_BINDING_URI, new SamlEncryptionData(keystore.getAbsolutePath(),
+                Secret.fromString("changeit"), Secret.fromString("changeit"), null, false, true));
+
+        HtmlPage page = login("alice");
+        assertThat(page.asNormalizedText(), containsString("Alice Admin"));
+    }
+
+    @Test
+    public void loginWithEncryptedAssertionAndCredentialsKeyStore() throws Exception {
+        SamlKeyStoresTest.addCredentials("saml-key", SamlKeyStoresTest.toPkcs12("secret"), "secret");
+        KeyStore ks = KeyStore.getInstance("JKS");
+        try (InputStream in = getClass().getResourceAsStream("LiveTest/saml-key.jks")) {
+            ks.load(in, "changeit".toCharArray());
+        }
+        idp.encryptFor((X509Certificate) ks.getCertificate(ks.aliases().nextElement()));
+        SamlEncryptionData encryptionData = new SamlEncryptionData(null, null, null, null, false, true);
+        encryptionData.setCredentialsId("saml-key");
+        configureRealm(SAML2_REDIRECT_BINDING_URI, encryptionData);
+
+        HtmlPage page = login("alice");
+        assertThat(page.asNormalizedText(), containsString("Alice Admin"));
+    }
+
+    @Test
+    public void listenersSeeTheUpdatedUser() throws Exception {
+        configureRealm(SAML2_REDIRECT_BINDING_URI, null);
+        login("alice");
+        LoginRecorder recorder = ExtensionList.lookupSingleton(LoginRecorder.class);
+        assertEquals("Alice Admin", recorder.fullName);
+        // the listeners do not run under the lock shared with other users
+        assertFalse(recorder.locked);
+    }
+
+    @Test
+    public void retryLaterFormIsPostedWithoutACrumb() throws Exception {
+        assertNotNull(jenkinsRule.jenkins.getCrumbIssuer());
+        configureRealm(SAML2_POST_BINDING_URI, null);
+        StaplerRequest2 request = Mockito.mock(StaplerRequest2.class);
+        Mockito.when(request.getMethod()).thenReturn("POST");
+        Mockito.when(request.getRequestURI()).thenReturn(jenkinsRule.contextPath + "/securityRealm/finishLogin");
+        Mockito.when(request.getParameter("SAMLResponse")).thenReturn("PHNhbWxwOlJlc3BvbnNlLz4=");
+        StaplerResponse2 response = Mockito.mock(StaplerResponse2.class);
+        StringWriter retryPage = new StringWriter();
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(retryPage));
+        SamlLoginThrottle.retryLater(request).generateResponse(request, response, null);
+
+        // the browser posts the form of the retry page again, it has no crumb
+        Matcher action = Pattern.compile("action=\"([^\"]*)\"").matcher(retryPage.toString());
+        assertTrue(action.find());
+        WebRequest repost = new WebRequest(new URL(jenkinsRule.getURL(),
+                action.group(1).substring(jenkinsRule.contextPath.length() + 1)), HttpMethod.POST);
+        repost.setRequestParameters(List.of(new NameValuePair("SAMLResponse", "PHNhbWxwOlJlc3BvbnNlLz4=")));
+        JenkinsRule.WebClient wc = jenkinsRule.createWebClient();
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        wc.setRedirectEnabled(false);
+        Page page = wc.getPage(repost);
+        // the crumb filter would answer 403, the SAML Response reaches the login, which rejects it as it is not valid
+        assertNotEquals(403, page.getWebResponse().getStatusCode());
+        assertThat(page.getWebResponse().getContentAsString(), not(containsString("No valid crumb")));
+    }
+
+    private void configureRealm(String binding, SamlEncryptionData encryptionData) throws Exception {
+        configureRealm(new IdpMetadataConfiguration(idp.getMetadata()), binding, encryptionData);
+    }
+
+    private void configureRealm(IdpMetadataConfiguration idpMetadataConfiguration, String binding,
+                                SamlEncryptionData encryptionData) throws Exception {
+        jenkinsRule.jenkins.setSecurityRealm(new SamlSecurityRealm(idpMetadataConfiguration,
+                TestSamlIdp.DISPLAY_NAME_ATTRIBUTE, TestSamlIdp.GROUPS_ATTRIBUTE, 86400,
+                TestSamlIdp.USERNAME_ATTRIBUTE, TestSamlIdp.EMAIL_ATTRIBUTE, null, null,
+                encryptionData, "none", binding, Collections.emptyList()));
+    }
+
+    private HtmlPage login(String username) throws Exception {
+        JenkinsRule.WebClient wc = jenkinsRule.createWebClient();
+        HtmlPage idpLogin = wc.goTo("securityRealm/commenceLogin?from=%2F");
+        assertThat(idpLogin.getUrl().toString(), containsString(idp.getUrl()));
+        HtmlForm loginForm = idpLogin.getFormByName("login");
+        loginForm.getInputByName("username").setValue(username);
+        HtmlPage idpResponse = idpLogin.getHtmlElementById("submit").click();
+        return idpResponse.getHtmlElementById("continue").click();
+    }
+
+    /**
+     * Records what a listener sees when the login is notified.
+     */
+    @TestExtension("listenersSeeTheUpdatedUser")
+    public static final class LoginRecorder extends SecurityListener {
+        private volatile String fullName;
+        private volatile boolean locked;
+
+        @Override
+        protected void loggedIn(@NonNull String username) {
+            User user = User.getById(username, false);
+            fullName = user == null ? null : user.getFullName();
+            locked = ((ReentrantLock) SamlUserLocks.get(username)).isHeldByCurrentThread();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Objects;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.SecretBytes;
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.cloudbees.plugins.credentials.impl.CertificateCredentialsImpl;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the keystore type detection and the keystores from certificate credentials.
+ */
+public class SamlKeyStoresTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void detectType() throws Exception {
+        File jks = folder.newFile("saml-key");
+        FileUtils.copyURLToFile(Objects.requireNonNull(getClass().getResource("LiveTest/saml-key.jks")), jks);
+        assertEquals(SamlKeyStores.JKS, SamlKeyStores.detectType(jks.getAbsolutePath()));
+        assertEquals(SamlKeyStores.JKS, SamlKeyStores.detectType("file:" + jks.getAbsolutePath()));
+
+        File pkcs12 = folder.newFile("saml-key.bin");
+        Files.write(pkcs12.toPath(), toPkcs12("changeit"));
+        assertEquals(SamlKeyStores.PKCS12, SamlKeyStores.detectType(pkcs12.getAbsolutePath()));
+
+        assertEquals(SamlKeyStores.PKCS12, SamlKeyStores.detectType(new File(folder.getRoot(), "missing.p12").getPath()));
+        assertEquals(KeyStore.getDefaultType(), SamlKeyStores.detectType(null));
+    }
+
+    @Test
+    public void fromCredentials() throws Exception {
+        assertNull(SamlKeyStores.fromCredentials(null));
+        assertNull(SamlKeyStores.fromCredentials("saml-key"));
+
+        addCredentials("saml-key", toPkcs12("changeit"), "changeit");
+        SamlKeyStores.InMemory keyStore = SamlKeyStores.fromCredentials("saml-key");
+        assertNotNull(keyStore);
+        assertSame(keyStore, SamlKeyStores.fromCredentials("saml-key"));
+
+        KeyStore loaded = KeyStore.getInstance(keyStore.getType());
+        try (InputStream in = keyStore.getResource().getInputStream()) {
+            loaded.load(in, keyStore.getPassword().toCharArray());
+        }
+        assertTrue(loaded.isKeyEntry(keyStore.getAlias()));
+        assertNotNull(loaded.getKey(keyStore.getAlias(), keyStore.getPassword().toCharArray()));
+        // nothing is written to JENKINS_HOME
+        assertEquals(0, Objects.requireNonNull(jenkinsRule.jenkins.getRootDir().listFiles(
+                (dir, name) -> name.endsWith(".jks") || name.endsWith(".p12"))).length);
+    }
+
+    @Test
+    public void credentialsRotation() throws Exception {
+        addCredentials("saml-key", toPkcs12("changeit"), "changeit");
+        SamlKeyStores.InMemory keyStore = SamlKeyStores.fromCredentials("saml-key");
+        assertNotNull(keyStore);
+
+        SystemCredentialsProvider.getInstance().getCredentials().clear();
+        addCredentials("saml-key", newPkcs12("other"), "other");
+        SamlKeyStores.InMemory rotated = SamlKeyStores.fromCredentials("saml-key");
+        assertNotNull(rotated);
+        assertNotEquals(keyStore.getVersion(), rotated.getVersion());
+    }
+
+    @Test
+    public void missingCredentialsFail() throws Exception {
+        assertThrows(IllegalStateException.class, () -> SamlKeyStores.requireCredentials("saml-key"));
+
+        SamlEncryptionData encryptionData = new SamlEncryptionData(null, null, null, null, false, false);
+        encryptionData.setCredentialsId("saml-key");
+        SamlPluginConfig config = new SamlPluginConfig("displayName", "groups", 10000, "email",
+                new IdpMetadataConfiguration(IOUtils.toString(Objects.requireNonNull(getClass().getResourceAsStream(
+                        "OpenSamlWrapperTest/metadataWrapper/metadata.xml")), StandardCharsets.UTF_8)),
+                "none", "uid", null, SAML2_REDIRECT_BINDING_URI, encryptionData, null);
+        assertThrows(IllegalStateException.class,
+                     () -> new SamlSPMetadataWrapper(config, null, null).createSAML2Client());
+    }
+
+    @SuppressWarnings("deprecation")
+    static void addCredentials(String id, byte[] pkcs12, String password) throws Exception {
+        SystemCredentialsProvider.getInstance().getCredentials().add(new CertificateCredentialsImpl(
+                CredentialsScope.GLOBAL, id, "SAML key", password,
+                new CertificateCredentialsImpl.UploadedKeyStoreSource(SecretBytes.fromBytes(pkcs12))));
+        SystemCredentialsProvider.getInstance().save();
+    }
+
+    /**
+     * @return the key of the LiveTest keystore as PKCS#12.
+     */
+    static byte[] toPkcs12(String password) throws Exception {
+        KeyStore jks = KeyStore.getInstance(SamlKeyStores.JKS);
+        try (InputStream in = SamlKeyStoresTest.class.getResourceAsStream("LiveTest/saml-key.jks")) {
+            jks.load(in, "changeit".toCharArray());
+        }
+        String alias = jks.aliases().nextElement();
+        KeyStore pkcs12 = KeyStore.getInstance(SamlKeyStores.PKCS12);
+        pkcs12.load(null, password.toCharArray());
+        pkcs12.setKeyEntry(alias, jks.getKey(alias, "changeit".toCharArray()), password.toCharArray(),
+                           jks.getCertificateChain(alias));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pkcs12.store(out, password.toCharArray());
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a new self-signed key as PKCS#12.
+     */
+    private static byte[] newPkcs12(String password) throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name dn = new X500Name("CN=SAML SP");
+        Instant now = Instant.now();
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(
+                dn, BigInteger.valueOf(now.toEpochMilli()), Date.from(now), Date.from(now.plus(Duration.ofDays(1))), dn,
+                keyPair.getPublic()).build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+        KeyStore pkcs12 = KeyStore.getInstance(SamlKeyStores.PKCS12);
+        pkcs12.load(null, password.toCharArray());
+        pkcs12.setKeyEntry("saml-sp", keyPair.getPrivate(), password.toCharArray(), new X509Certificate[] {certificate});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pkcs12.store(out, password.toCharArray());
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,375 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import jenkins.model.Jenkins;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * <p>Measures how many logins per second Jenkins sustains, each simulated browser goes through the commenceLogin,
+ * the {@link TestSamlIdp} and the finishLogin, with its own cookies.</p>
+ * <p>It only runs when it is enabled, the latency percentiles are written in HdrHistogram format to
+ * <code>target/saml-load-test</code>, so the results of different releases can be compared.</p>
+ * <p>The offload test runs the same load once for each {@link SamlLoginOffload} mode, the finishLogin latency
+ * includes the SAML Response validation, that always runs on the request thread.</p>
+ * <pre>
+ * mvn test -Dtest=SamlLoadTest -Dsaml.loadTest=true -Dsaml.loadTest.browsers=50 -Dsaml.loadTest.logins=20
+ * </pre>
+ */
+public class SamlLoadTest {
+    private static final Logger LOG = Logger.getLogger(SamlLoadTest.class.getName());
+
+    private static final String ENABLED_PROPERTY = "saml.loadTest";
+    private static final int BROWSERS = Integer.getInteger(ENABLED_PROPERTY + ".browsers", 50);
+    private static final int LOGINS = Integer.getInteger(ENABLED_PROPERTY + ".logins", 20);
+    private static final int WARM_UP_LOGINS = Integer.getInteger(ENABLED_PROPERTY + ".warmUpLogins", 2);
+    private static final File OUTPUT = new File(System.getProperty(ENABLED_PROPERTY + ".output", "target/saml-load-test"));
+
+    private static final Pattern HIDDEN_INPUT = Pattern.compile(
+            "<input[^>]*name=\"(SAMLRequest|SAMLResponse|RelayState)\"[^>]*value=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+    private static final Pattern FORM_ACTION = Pattern.compile("<form[^>]*action=\"([^\"]*)\"", Pattern.CASE_INSENSITIVE);
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private TestSamlIdp idp;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("Enable the load test with -D" + ENABLED_PROPERTY + "=true", Boolean.getBoolean(ENABLED_PROPERTY));
+        idp = new TestSamlIdp();
+        for (int i = 0; i < BROWSERS; i++) {
+            idp.user("user" + i, "User " + i, "user" + i + "@example.com", "users");
+        }
+        jenkinsRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("users"));
+    }
+
+    @After
+    public void tearDown() {
+        if (idp != null) {
+            idp.close();
+        }
+    }
+
+    @Test
+    public void redirectBinding() throws Exception {
+        run(SAML2_REDIRECT_BINDING_URI, "redirect");
+    }
+
+    @Test
+    public void postBinding() throws Exception {
+        run(SAML2_POST_BINDING_URI, "post");
+    }
+
+    @Test
+    public void offloadModes() throws Exception {
+        SamlLoginOffload.Mode mode = SamlLoginOffload.getMode();
+        try {
+            for (SamlLoginOffload.Mode each : SamlLoginOffload.Mode.values()) {
+                if (each == SamlLoginOffload.Mode.VIRTUAL && Runtime.version().feature() < 21) {
+                    continue;
+                }
+                SamlLoginOffload.setMode(each);
+                run(SAML2_POST_BINDING_URI, "offload-" + each.name().toLowerCase(Locale.ROOT));
+            }
+        } finally {
+            SamlLoginOffload.setMode(mode);
+        }
+    }
+
+    private void run(String binding, String name) throws Exception {
+        jenkinsRule.jenkins.setSecurityRealm(new SamlSecurityRealm(new IdpMetadataConfiguration(idp.getMetadata()),
+                TestSamlIdp.DISPLAY_NAME_ATTRIBUTE, TestSamlIdp.GROUPS_ATTRIBUTE, 86400,
+                TestSamlIdp.USERNAME_ATTRIBUTE, TestSamlIdp.EMAIL_ATTRIBUTE, null, null,
+                null, "none", binding, Collections.emptyList()));
+        String jenkinsUrl = jenkinsRule.getURL().toString();
+
+        Stats warmUp = new Stats();
+        load(jenkinsUrl, WARM_UP_LOGINS, warmUp);
+        LOG.info("SAML load test " + name + " warm up: " + warmUp.summary(0));
+
+        Stats stats = new Stats();
+        long start = System.nanoTime();
+        load(jenkinsUrl, LOGINS, stats);
+        long elapsed = System.nanoTime() - start;
+        LOG.info("SAML load test " + name + ": " + BROWSERS + " browsers, " + stats.summary(elapsed));
+        stats.write(name, start);
+        assertEquals("failed logins " + stats.errors, 0, stats.errorCount());
+    }
+
+    private void load(String jenkinsUrl, int logins, Stats stats) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(BROWSERS);
+        CountDownLatch ready = new CountDownLatch(1);
+        try {
+            List<Future<?>> browsers = new ArrayList<>();
+            for (int i = 0; i < BROWSERS; i++) {
+                Browser browser = new Browser(jenkinsUrl, "user" + i);
+                browsers.add(executor.submit(() -> {
+                    ready.await();
+                    for (int j = 0; j < logins; j++) {
+                        browser.login(stats);
+                    }
+                    return null;
+                }));
+            }
+            ready.countDown();
+            for (Future<?> browser : browsers) {
+                browser.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A user with its own cookies, it logs in again and again.
+     */
+    private final class Browser {
+        private final String jenkinsUrl;
+        private final String username;
+        private final HttpClient client;
+
+        private Browser(String jenkinsUrl, String username) {
+            this.jenkinsUrl = jenkinsUrl;
+            this.username = username;
+            this.client = HttpClient.newBuilder()
+                    .cookieHandler(new CookieManager())
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(Duration.ofSeconds(30))
+                    .build();
+        }
+
+        void login(Stats stats) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                // a new session for each login
+                ((CookieManager) client.cookieHandler().orElseThrow()).getCookieStore().removeAll();
+
+                long phase = System.nanoTime();
+                HttpResponse<String> commence = client.send(
+                        HttpRequest.newBuilder(URI.create(jenkinsUrl + "securityRealm/commenceLogin?from=%2F")).build(),
+                        HttpResponse.BodyHandlers.ofString());
+                stats.commence.recordValue(micros(phase));
+                Map<String, String> authnRequest;
+                String samlBinding;
+                if (commence.statusCode() == 302 || commence.statusCode() == 303) {
+                    authnRequest = query(commence.headers().firstValue("Location").orElseThrow());
+                    samlBinding = SAML2_REDIRECT_BINDING_URI;
+                } else if (commence.statusCode() == 200) {
+                    authnRequest = hiddenInputs(commence.body());
+                    samlBinding = SAML2_POST_BINDING_URI;
+                } else {
+                    stats.error("commenceLogin " + commence.statusCode());
+                    return;
+                }
+
+                phase = System.nanoTime();
+                Map<String, String> idpLogin = new LinkedHashMap<>();
+                idpLogin.put("username", username);
+                idpLogin.put("binding", samlBinding);
+                idpLogin.put("SAMLRequest", authnRequest.get("SAMLRequest"));
+                idpLogin.put("RelayState", authnRequest.get("RelayState"));
+                HttpResponse<String> idpResponse = client.send(post(idp.getUrl() + "/login", idpLogin),
+                        HttpResponse.BodyHandlers.ofString());
+                stats.idp.recordValue(micros(phase));
+                if (idpResponse.statusCode() != 200) {
+                    stats.error("IdP " + idpResponse.statusCode());
+                    return;
+                }
+
+                phase = System.nanoTime();
+                Matcher action = FORM_ACTION.matcher(idpResponse.body());
+                if (!action.find()) {
+                    stats.error("IdP form");
+                    return;
+                }
+                HttpResponse<String> finish = client.send(post(unescape(action.group(1)), hiddenInputs(idpResponse.body())),
+                        HttpResponse.BodyHandlers.ofString());
+                stats.finish.recordValue(micros(phase));
+                String location = finish.headers().firstValue("Location").orElse("");
+                if ((finish.statusCode() == 302 || finish.statusCode() == 303) && !location.contains("securityRealm")) {
+                    stats.login.recordValue(micros(start));
+                } else {
+                    stats.error("finishLogin " + finish.statusCode());
+                }
+            } catch (IOException | RuntimeException e) {
+                stats.error(e.getClass().getSimpleName());
+            }
+        }
+
+        private HttpRequest post(String url, Map<String, String> parameters) {
+            StringBuilder form = new StringBuilder();
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (parameter.getValue() != null) {
+                    if (form.length() > 0) {
+                        form.append('&');
+                    }
+                    form.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                        .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+                }
+            }
+            return HttpRequest.newBuilder(URI.create(url))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(form.toString()))
+                    .build();
+        }
+    }
+
+    private static Map<String, String> query(String url) {
+        Map<String, String> parameters = new LinkedHashMap<>();
+        String query = URI.create(url).getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                                   URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static Map<String, String> hiddenInputs(String html) {
+        Map<String, String> inputs = new LinkedHashMap<>();
+        Matcher matcher = HIDDEN_INPUT.matcher(html);
+        while (matcher.find()) {
+            inputs.put(matcher.group(1), unescape(matcher.group(2)));
+        }
+        return inputs;
+    }
+
+    private static String unescape(String html) {
+        return html.replace("&#x2b;", "+").replace("&#x3d;", "=").replace("&#x2f;", "/").replace("&#x3a;", ":")
+                   .replace("&quot;", "\"").replace("&#39;", "'").replace("&lt;", "<").replace("&gt;", ">")
+                   .replace("&amp;", "&");
+    }
+
+    private static long micros(long start) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    /**
+     * Latencies in microseconds and errors of a run.
+     */
+    private static final class Stats {
+        private final Histogram login = new ConcurrentHistogram(3);
+        private final Histogram commence = new ConcurrentHistogram(3);
+        private final Histogram idp = new ConcurrentHistogram(3);
+        private final Histogram finish = new ConcurrentHistogram(3);
+        private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        void error(String reason) {
+            errors.computeIfAbsent(reason, k -> new LongAdder()).increment();
+        }
+
+        long errorCount() {
+            return errors.values().stream().mapToLong(LongAdder::sum).sum();
+        }
+
+        String summary(long elapsedNanos) {
+            long total = login.getTotalCount() + errorCount();
+            double seconds = elapsedNanos / 1e9;
+            return login.getTotalCount() + " logins" + (seconds > 0 ? String.format(" (%.1f/s)", login.getTotalCount() / seconds) : "")
+                   + ", error rate " + (total == 0 ? 0 : 100.0 * errorCount() / total) + "%, errors " + errors
+                   + ", p50 " + login.getValueAtPercentile(50) / 1000 + " ms"
+                   + ", p90 " + login.getValueAtPercentile(90) / 1000 + " ms"
+                   + ", p99 " + login.getValueAtPercentile(99) / 1000 + " ms"
+                   + ", max " + login.getMaxValue() / 1000 + " ms"
+                   + ", finishLogin p50 " + finish.getValueAtPercentile(50) / 1000 + " ms"
+                   + ", p99 " + finish.getValueAtPercentile(99) / 1000 + " ms";
+        }
+
+        void write(String name, long start) throws IOException {
+            if (!OUTPUT.isDirectory() && !OUTPUT.mkdirs()) {
+                throw new IOException("Unable to create " + OUTPUT);
+            }
+            long startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            try (PrintStream log = new PrintStream(new File(OUTPUT, name + ".hlog"), StandardCharsets.UTF_8)) {
+                HistogramLogWriter writer = new HistogramLogWriter(log);
+                writer.outputLogFormatVersion();
+                writer.outputStartTime(startMillis);
+                writer.outputLegend();
+                for (Map.Entry<String, Histogram> phase : phases().entrySet()) {
+                    Histogram histogram = phase.getValue().copy();
+                    histogram.setTag(phase.getKey());
+                    histogram.setStartTimeStamp(startMillis);
+                    histogram.setEndTimeStamp(System.currentTimeMillis());
+                    writer.outputIntervalHistogram(histogram);
+                }
+            }
+            for (Map.Entry<String, Histogram> phase : phases().entrySet()) {
+                try (PrintStream out = new PrintStream(new File(OUTPUT, name + "-" + phase.getKey() + ".hgrm"),
+                        StandardCharsets.UTF_8)) {
+                    // microseconds to milliseconds
+                    phase.getValue().outputPercentileDistribution(out, 1000.0);
+                }
+            }
+        }
+
+        private Map<String, Histogram> phases() {
+            Map<String, Histogram> phases = new LinkedHashMap<>();
+            phases.put("login", login);
+            phases.put("commenceLogin", commence);
+            phases.put("idp", idp);
+            phases.put("finishLogin", finish);
+            return phases;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.LoggerRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test the execution modes of the blocking work of the logins.
+ */
+public class SamlLoginOffloadTest {
+
+    @Rule
+    public final LoggerRule logging = new LoggerRule().record(SamlLoginOffload.class, Level.WARNING);
+
+    private SamlLoginOffload.Mode mode;
+
+    @Before
+    public void saveMode() {
+        mode = SamlLoginOffload.getMode();
+    }
+
+    @After
+    public void restoreMode() throws InterruptedException {
+        SamlLoginOffload.setMode(mode);
+    }
+
+    @Test
+    public void parseMode() {
+        assertEquals(SamlLoginOffload.Mode.NONE, SamlLoginOffload.parseMode(null));
+        assertEquals(SamlLoginOffload.Mode.NONE, SamlLoginOffload.parseMode("unknown"));
+        assertEquals(SamlLoginOffload.Mode.POOL, SamlLoginOffload.parseMode(" pool "));
+        assertEquals(SamlLoginOffload.Mode.VIRTUAL, SamlLoginOffload.parseMode("Virtual"));
+    }
+
+    @Test
+    public void poolRunsOnTheCallerWhenItIsFull() throws Exception {
+        runsOnTheCallerWhenItIsFull(SamlLoginOffload.Mode.POOL);
+    }
+
+    @Test
+    public void virtualRunsOnTheCallerWhenItIsFull() throws Exception {
+        assumeTrue(Runtime.version().feature() >= 21);
+        runsOnTheCallerWhenItIsFull(SamlLoginOffload.Mode.VIRTUAL);
+    }
+
+    @Test
+    public void failuresAreLoggedOnEveryPath() throws Exception {
+        logging.capture(10);
+        for (SamlLoginOffload.Mode each : SamlLoginOffload.Mode.values()) {
+            SamlLoginOffload.setMode(each);
+            SamlLoginOffload.execute(() -> {
+                throw new IllegalStateException("failed in " + each);
+            });
+        }
+        SamlLoginOffload.shutdown();
+        assertEquals(SamlLoginOffload.Mode.values().length,
+                     logging.getRecords().stream().filter(r -> r.getThrown() instanceof IllegalStateException).count());
+    }
+
+    private static void runsOnTheCallerWhenItIsFull(SamlLoginOffload.Mode mode) throws Exception {
+        SamlLoginOffload.setMode(mode);
+        Thread caller = Thread.currentThread();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger background = new AtomicInteger();
+        AtomicInteger onTheCaller = new AtomicInteger();
+        Runnable task = () -> {
+            if (Thread.currentThread() == caller) {
+                onTheCaller.incrementAndGet();
+            } else {
+                background.incrementAndGet();
+                await(release);
+            }
+        };
+        try {
+            int tasks = SamlLoginOffload.THREADS + SamlLoginOffload.QUEUE_SIZE;
+            for (int i = 0; i < tasks; i++) {
+                SamlLoginOffload.execute(task);
+            }
+            assertEquals(0, onTheCaller.get());
+            // the bound is reached, the next task runs on this thread
+            SamlLoginOffload.execute(task);
+            assertEquals(1, onTheCaller.get());
+        } finally {
+            release.countDown();
+            SamlLoginOffload.shutdown();
+        }
+        assertEquals(SamlLoginOffload.THREADS + SamlLoginOffload.QUEUE_SIZE, background.get());
+
+        // the finished tasks released their permits
+        SamlLoginOffload.execute(task);
+        SamlLoginOffload.shutdown();
+        assertEquals(1, onTheCaller.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.mockito.Mockito;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Test the limit of logins processed at the same time.
+ */
+public class SamlLoginThrottleTest {
+
+    @Test
+    public void waitForTurn() throws Exception {
+        assumeTrue(SamlLoginThrottle.MAX_CONCURRENT > 0);
+        List<SamlLoginThrottle.Permit> permits = new ArrayList<>();
+        try {
+            for (int i = 0; i < SamlLoginThrottle.MAX_CONCURRENT; i++) {
+                permits.add(SamlLoginThrottle.acquire());
+            }
+            assertEquals(SamlLoginThrottle.MAX_CONCURRENT, SamlLoginThrottle.getActive());
+
+            CompletableFuture<SamlLoginThrottle.Permit> waiting = CompletableFuture.supplyAsync(SamlLoginThrottle::acquire);
+            while (SamlLoginThrottle.getQueueDepth() == 0) {
+                Thread.sleep(10);
+            }
+            permits.remove(0).close();
+            SamlLoginThrottle.Permit permit = waiting.get(1, TimeUnit.MINUTES);
+            assertNotNull(permit);
+            permits.add(permit);
+            assertEquals(0, SamlLoginThrottle.getQueueDepth());
+        } finally {
+            permits.forEach(SamlLoginThrottle.Permit::close);
+        }
+        assertEquals(0, SamlLoginThrottle.getActive());
+    }
+
+    @Test
+    public void rejectedWhenInterrupted() throws Exception {
+        assumeTrue(SamlLoginThrottle.MAX_CONCURRENT > 0);
+        List<SamlLoginThrottle.Permit> permits = new ArrayList<>();
+        long rejected = SamlLoginThrottle.getRejected();
+        try {
+            for (int i = 0; i < SamlLoginThrottle.MAX_CONCURRENT; i++) {
+                permits.add(SamlLoginThrottle.acquire());
+            }
+            SamlLoginThrottle.Permit[] result = new SamlLoginThrottle.Permit[1];
+            Thread thread = new Thread(() -> result[0] = SamlLoginThrottle.acquire());
+            thread.start();
+            while (SamlLoginThrottle.getQueueDepth() == 0) {
+                Thread.sleep(10);
+            }
+            thread.interrupt();
+            thread.join(TimeUnit.MINUTES.toMillis(1));
+            assertNull(result[0]);
+            assertEquals(rejected + 1, SamlLoginThrottle.getRejected());
+            // the administrators see the metrics while the logins are rejected
+            SamlLoginThrottle.Monitor monitor = new SamlLoginThrottle.Monitor();
+            assertTrue(monitor.isActivated());
+            assertThat(monitor.getMetrics(), containsString("rejected=" + (rejected + 1)));
+        } finally {
+            permits.forEach(SamlLoginThrottle.Permit::close);
+        }
+    }
+
+    @Test
+    public void retryLaterPage() throws Exception {
+        StaplerRequest2 request = Mockito.mock(StaplerRequest2.class);
+        Mockito.when(request.getMethod()).thenReturn("POST");
+        Mockito.when(request.getRequestURI()).thenReturn("/jenkins/securityRealm/finishLogin");
+        Mockito.when(request.getParameter("SAMLResponse")).thenReturn("PHNhbWw+\"<script>");
+        StaplerResponse2 response = Mockito.mock(StaplerResponse2.class);
+        StringWriter page = new StringWriter();
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(page));
+
+        SamlLoginThrottle.retryLater(request).generateResponse(request, response, null);
+        Mockito.verify(response).setStatus(503);
+        Mockito.verify(response).setHeader("Retry-After", String.valueOf(SamlLoginThrottle.RETRY_AFTER));
+        assertThat(page.toString(), containsString("action=\"/jenkins/securityRealm/finishLogin\""));
+        assertThat(page.toString(), containsString("value=\"PHNhbWw+&quot;&lt;script&gt;\""));
+    }
+}
@@ -0,0 +1,98 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the cache of the SAML Responses processed.
+ */
+public class SamlResponseCacheTest {
+
+    @After
+    public void clear() {
+        SamlResponseCache.clear();
+    }
+
+    @Test
+    public void successIsOneTimeUse() {
+        String digest = SamlResponseCache.digest("PHNhbWxwOlJlc3BvbnNlLz4=");
+        assertNull(SamlResponseCache.get(digest, "session"));
+        assertTrue(SamlResponseCache.recordSuccess(digest, "alice", "new-session"));
+        assertFalse(SamlResponseCache.recordSuccess(digest, "alice", "other-session"));
+
+        // the success applies to any session, it can only be used once
+        SamlResponseCache.Outcome outcome = SamlResponseCache.get(digest, "other-session");
+        assertTrue(outcome.isSuccess());
+        assertEquals("alice", outcome.getUsername());
+        // the session created by the login is the one that can post it again
+        assertEquals("new-session", outcome.getSessionId());
+    }
+
+    @Test
+    public void failureIsRemembered() {
+        String digest = SamlResponseCache.digest("PHNhbWxwOlJlc3BvbnNlIElEPSJmYWlsIi8+");
+        assertNotEquals(SamlResponseCache.digest("other"), digest);
+        SamlResponseCache.recordFailure(digest, "session", "Signature validation failed");
+
+        SamlResponseCache.Outcome outcome = SamlResponseCache.get(digest, "session");
+        assertFalse(outcome.isSuccess());
+        assertEquals("Signature validation failed", outcome.getMessage());
+        // the failure can depend on the session, another session validates the response again
+        assertNull(SamlResponseCache.get(digest, "other-session"));
+    }
+
+    @Test
+    public void duplicateWaitsForTheResponseInFlight() throws Exception {
+        String digest = SamlResponseCache.digest("PHNhbWxwOlJlc3BvbnNlIElEPSJpbkZsaWdodCIvPg==");
+        assertNull(SamlResponseCache.start(digest));
+        CompletableFuture<SamlResponseCache.Outcome> inFlight = SamlResponseCache.start(digest);
+        assertNotNull(inFlight);
+        CompletableFuture<SamlResponseCache.Outcome> duplicate = CompletableFuture.supplyAsync(
+                () -> SamlResponseCache.await(inFlight, "other-session"));
+
+        assertTrue(SamlResponseCache.recordSuccess(digest, "alice", "new-session"));
+        SamlResponseCache.finish(digest, "session");
+        // the duplicate of a double post has the session replaced by the login, it still gets the success
+        SamlResponseCache.Outcome outcome = duplicate.get(10, TimeUnit.SECONDS);
+        assertTrue(outcome.isSuccess());
+        assertEquals("alice", outcome.getUsername());
+        assertNull(SamlResponseCache.start(SamlResponseCache.digest("other")));
+    }
+
+    @Test
+    public void duplicateFromAnotherSessionIsValidatedAfterAFailure() {
+        String digest = SamlResponseCache.digest("PHNhbWxwOlJlc3BvbnNlIElEPSJvdGhlciIvPg==");
+        assertNull(SamlResponseCache.start(digest));
+        CompletableFuture<SamlResponseCache.Outcome> inFlight = SamlResponseCache.start(digest);
+        SamlResponseCache.recordFailure(digest, "session", "InResponseTo does not match");
+        SamlResponseCache.finish(digest, "session");
+
+        assertNull(SamlResponseCache.await(inFlight, "other-session"));
+        assertEquals("InResponseTo does not match", SamlResponseCache.await(inFlight, "session").getMessage());
+    }
+}
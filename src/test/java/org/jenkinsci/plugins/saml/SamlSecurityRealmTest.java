@@ -54,6 +54,7 @@ import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.hamcrest.MatcherAssert.assertThat;
+import org.jenkinsci.plugins.saml.conf.Attribute;
 import org.jvnet.hudson.test.Issue;
 import org.pac4j.saml.profile.SAML2Profile;
 import org.springframework.security.core.GrantedAuthority;
@@ -258,6 +259,84 @@ public class SamlSecurityRealmTest {
         assertThat(records.get(0).getMessage(), allOf(containsString("Found 3 empty groups"), containsString("user123")));
     }
 
+    @LocalData("samlProfileWithEmptyGroups")
+    @Test
+    public void samlProfileWithGroupsFilter() {
+        SAML2Profile samlProfile = new SAML2Profile();
+        samlProfile.addAttribute(samlSecurityRealm.getGroupsAttributeName(),
+                                 List.of("CN=jenkins-admins", "CN=jenkins-users", "CN=payroll", "ops", "Domain Users"));
+        samlSecurityRealm.setGroupsFilter(new SamlGroupsFilter("ops\nre:CN=jenkins-.*", "CN=\nCN=jenkins-",
+                                                               "admins=administrators\nops=operations"));
+        List<GrantedAuthority> grantedAuthorities = samlSecurityRealm.loadGrantedAuthorities(samlProfile);
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2, new SimpleGrantedAuthority("administrators"),
+                             new SimpleGrantedAuthority("users"), new SimpleGrantedAuthority("operations")),
+                     grantedAuthorities);
+
+        samlSecurityRealm.setGroupsFilter(new SamlGroupsFilter(null, null, null));
+        assertEquals(6, samlSecurityRealm.loadGrantedAuthorities(samlProfile).size());
+    }
+
+    @LocalData("samlProfileWithEmptyGroups")
+    @Test
+    public void samlProfileWithInvalidGroupsFilter() {
+        logs.record(SamlGroupsFilter.class, Level.WARNING).capture(10);
+        SAML2Profile samlProfile = new SAML2Profile();
+        samlProfile.addAttribute(samlSecurityRealm.getGroupsAttributeName(),
+                                 List.of("CN=jenkins-admins", "ops", "Domain Users"));
+        samlSecurityRealm.setGroupsFilter(new SamlGroupsFilter("ops\nre:CN=jenkins-(.*", null, null));
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2, new SimpleGrantedAuthority("ops")),
+                     samlSecurityRealm.loadGrantedAuthorities(samlProfile));
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2, new SimpleGrantedAuthority("ops")),
+                     samlSecurityRealm.loadGrantedAuthorities(samlProfile));
+        assertThat(logs.getMessages(), hasSize(1));
+        assertThat(logs.getMessages().get(0), containsString("CN=jenkins-(.*"));
+    }
+
+    @LocalData("samlProfileWithEmptyGroups")
+    @Test
+    public void samlProfileWithLiteralGroupsFilter() {
+        SAML2Profile samlProfile = new SAML2Profile();
+        samlProfile.addAttribute(samlSecurityRealm.getGroupsAttributeName(),
+                                 List.of("Domain Users (Legacy)", "Domain Users Legacy", "eng.platform", "engXplatform"));
+        samlSecurityRealm.setGroupsFilter(new SamlGroupsFilter("Domain Users (Legacy)\neng.platform", null, null));
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2, new SimpleGrantedAuthority("Domain Users (Legacy)"),
+                             new SimpleGrantedAuthority("eng.platform")),
+                     samlSecurityRealm.loadGrantedAuthorities(samlProfile));
+    }
+
+    @LocalData("samlProfileWithEmptyGroups")
+    @Test
+    public void samlProfileExtraction() {
+        samlSecurityRealm.setSamlCustomAttribute(List.of(new Attribute("urn:mace:dir:attribute-def:mail", "Mail"),
+                                                         new Attribute("department", "Department"),
+                                                         new Attribute("missing", "Missing")));
+        SAML2Profile samlProfile = new SAML2Profile();
+        samlProfile.setId("nameId");
+        samlProfile.addAttribute("urn:mace:dir:attribute-def:uid", List.of("user123", "other"));
+        samlProfile.addAttribute("urn:mace:dir:attribute-def:displayName", "User 123");
+        samlProfile.addAttribute("urn:mace:dir:attribute-def:mail", List.of("", "user123@example.com"));
+        samlProfile.addAttribute(samlSecurityRealm.getGroupsAttributeName(), List.of("group-1", "group-2"));
+        samlProfile.addAttribute("department", "engineering");
+        samlProfile.addAttribute("unused", "value");
+
+        SamlLoginRecord loginRecord = new SamlAttributeExtractionPlan(samlSecurityRealm).extract(samlProfile);
+        assertEquals("user123", loginRecord.getUsername());
+        assertEquals("User 123", loginRecord.getFullName());
+        assertEquals("user123@example.com", loginRecord.getEmail());
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2, new SimpleGrantedAuthority("group-1"),
+                             new SimpleGrantedAuthority("group-2")), loginRecord.getAuthorities());
+        assertEquals(2, loginRecord.getCustomAttributes().size());
+        assertEquals("Mail", loginRecord.getCustomAttributes().get(0).getDisplayName());
+        assertEquals("[, user123@example.com]", loginRecord.getCustomAttributes().get(0).getValue());
+        assertEquals("engineering", loginRecord.getCustomAttributes().get(1).getValue());
+
+        SAML2Profile nameIdProfile = new SAML2Profile();
+        nameIdProfile.setId("nameId");
+        loginRecord = new SamlAttributeExtractionPlan(samlSecurityRealm).extract(nameIdProfile);
+        assertEquals("nameId", loginRecord.getUsername());
+        assertEquals(List.of(SecurityRealm.AUTHENTICATED_AUTHORITY2), loginRecord.getAuthorities());
+    }
+
     @Test
     @LocalData // config.xml from saml-plugin 0.14
     public void upgradeIDPMetadataFileTest() throws IOException {
@@ -0,0 +1,105 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import hudson.security.SecurityRealm;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the serialized form of the SAML authentication kept in the HTTP session.
+ */
+public class SamlSessionSerializationTest {
+    private static final Logger LOG = Logger.getLogger(SamlSessionSerializationTest.class.getName());
+
+    private static SamlAuthenticationToken token(int groups) {
+        List<GrantedAuthority> authorities = new ArrayList<>();
+        authorities.add(SecurityRealm.AUTHENTICATED_AUTHORITY2);
+        for (int i = 0; i < groups; i++) {
+            authorities.add(new SimpleGrantedAuthority("CN=jenkins-team-" + i + ",OU=Groups,OU=Engineering,DC=example,DC=com"));
+        }
+        authorities.add(new SimpleGrantedAuthority("😀 emoji group"));
+        return new SamlAuthenticationToken(new SamlUserDetails("tesla", authorities));
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        SamlAuthenticationToken token = token(50);
+        SamlAuthenticationToken copy = (SamlAuthenticationToken) deserialize(serialize(token));
+        assertEquals("tesla", copy.getName());
+        assertTrue(copy.isAuthenticated());
+        assertEquals(new HashSet<>(token.getAuthorities()), new HashSet<>(copy.getAuthorities()));
+        assertEquals(new HashSet<>(token.getAuthorities()), new HashSet<>(copy.getPrincipal().getAuthorities()));
+        assertTrue(copy.getAuthorities().stream().anyMatch(a -> a == SecurityRealm.AUTHENTICATED_AUTHORITY2));
+    }
+
+    @Test
+    public void serializedSize() throws Exception {
+        SamlAuthenticationToken token = token(500);
+        // what the default serialization writes: the user name and the authorities of the user details and the token
+        List<Object> plain = List.of("tesla", new ArrayList<>(token.getAuthorities()),
+                                     new ArrayList<>(token.getPrincipal().getAuthorities()));
+        int plainSize = serialize(plain).length;
+
+        long start = System.nanoTime();
+        byte[] compact = null;
+        for (int i = 0; i < 100; i++) {
+            compact = serialize(token);
+        }
+        long serializeTime = (System.nanoTime() - start) / 100;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            deserialize(compact);
+        }
+        long deserializeTime = (System.nanoTime() - start) / 100;
+
+        LOG.info("SAML session with 500 groups: " + compact.length + " bytes (default " + plainSize + " bytes), serialization "
+                 + TimeUnit.NANOSECONDS.toMicros(serializeTime) + " us, deserialization "
+                 + TimeUnit.NANOSECONDS.toMicros(deserializeTime) + " us");
+        assertThat(compact.length, lessThan(plainSize / 3));
+    }
+}
@@ -0,0 +1,158 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * <p>Measures the classes the plugin loads when Jenkins loads its configuration, and the time to configure the
+ * realm and to run the first SAML operation. Loading the realm must not load the keystore or the SAML libraries.</p>
+ * <p>The classes are counted in a class loader of their own, so the classes loaded before by Jenkins or by other
+ * tests do not skew the count. The times are measured in a running Jenkins and include its own work.</p>
+ */
+public class SamlStartupBenchmarkTest {
+    private static final Logger LOG = Logger.getLogger(SamlStartupBenchmarkTest.class.getName());
+
+    /**
+     * Packages of the plugin and of the libraries it bundles.
+     */
+    private static final List<String> PLUGIN_PACKAGES = List.of("org.jenkinsci.plugins.saml.", "org.pac4j.",
+            "org.opensaml.", "net.shibboleth.", "org.bouncycastle.");
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Test
+    public void pluginClassLoading() throws Exception {
+        PluginClassLoader loader = new PluginClassLoader(getClass().getClassLoader());
+        long start = System.nanoTime();
+        // what Jenkins loads to read the SAML realm from config.xml
+        Class<?> realm = Class.forName(SamlSecurityRealm.class.getName(), true, loader);
+        Class.forName(SamlSecurityRealm.class.getName() + "$DescriptorImpl", true, loader);
+        long elapsed = System.nanoTime() - start;
+        assertSame(loader, realm.getClassLoader());
+
+        Map<String, Long> perPackage = new TreeMap<>();
+        for (String name : loader.getLoaded()) {
+            for (String prefix : PLUGIN_PACKAGES) {
+                if (name.startsWith(prefix)) {
+                    perPackage.merge(prefix, 1L, Long::sum);
+                }
+            }
+        }
+        LOG.info("Loading the SAML realm took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms and loaded "
+                 + loader.getLoaded().size() + " classes of the plugin and its libraries " + perPackage);
+        // the keystore and the SAML libraries are only loaded by the first SAML operation
+        List<String> eager = loader.getLoaded().stream()
+                .filter(name -> name.equals(BundleKeyStore.class.getName()) || name.startsWith("org.bouncycastle.")
+                                || name.startsWith("org.opensaml."))
+                .toList();
+        assertEquals(List.of(), eager);
+    }
+
+    @Test
+    public void startup() throws Exception {
+        File jenkinsHome = jenkinsRule.jenkins.getRootDir();
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+
+        long start = System.nanoTime();
+        jenkinsRule.jenkins.setSecurityRealm(new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "none", SAML2_REDIRECT_BINDING_URI,
+                Collections.emptyList()));
+        jenkinsRule.jenkins.save();
+        log("realm configuration", start);
+        // the keystore is not touched until the first SAML operation
+        assertFalse(new File(jenkinsHome, BundleKeyStore.SAML_JENKINS_KEYSTORE_XML).exists());
+        assertFalse(new File(jenkinsHome, BundleKeyStore.SAML_JENKINS_KEYSTORE_JKS).exists());
+
+        start = System.nanoTime();
+        try (JenkinsRule.WebClient wc = jenkinsRule.createWebClient()) {
+            wc.goTo("securityRealm/metadata", "application/samlmetadata+xml");
+        }
+        log("first SAML operation", start);
+    }
+
+    private static void log(String phase, long start) {
+        LOG.info("SAML " + phase + " took " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Defines again the classes of the plugin and of its libraries and records them, the other classes come from
+     * the parent.
+     */
+    private static final class PluginClassLoader extends ClassLoader {
+        private final List<String> loaded = Collections.synchronizedList(new ArrayList<>());
+
+        private PluginClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (PLUGIN_PACKAGES.stream().noneMatch(name::startsWith)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if (c == null) {
+                    try (InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                        if (in == null) {
+                            throw new ClassNotFoundException(name);
+                        }
+                        byte[] bytes = in.readAllBytes();
+                        c = defineClass(name, bytes, 0, bytes.length);
+                        loaded.add(name);
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                }
+                if (resolve) {
+                    resolveClass(c);
+                }
+                return c;
+            }
+        }
+
+        private List<String> getLoaded() {
+            return loaded;
+        }
+    }
+}
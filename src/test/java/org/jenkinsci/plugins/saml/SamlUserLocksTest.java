@@ -0,0 +1,98 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.saml.conf.Attribute;
+import org.jenkinsci.plugins.saml.user.SamlCustomProperty;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.pac4j.saml.profile.SAML2Profile;
+import hudson.model.User;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the striped locks that serialize the updates of the same user.
+ */
+public class SamlUserLocksTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private SamlSecurityRealm samlSecurity;
+
+    @Before
+    public void setUp() throws Exception {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        samlSecurity = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "lowercase", SAML2_REDIRECT_BINDING_URI,
+                List.of(new Attribute("department", "Department")));
+        jenkinsRule.jenkins.setSecurityRealm(samlSecurity);
+    }
+
+    @Test
+    public void sameLockForTheSameUser() {
+        // the default id strategy is case insensitive
+        assertSame(SamlUserLocks.get("tesla"), SamlUserLocks.get("Tesla"));
+    }
+
+    @Test
+    public void concurrentUpdatesOfTheSameUser() throws Exception {
+        User user = User.getById("tesla", true);
+        SAML2Profile profile = new SAML2Profile();
+        profile.addAttribute("uid", "tesla");
+        profile.addAttribute("displayName", "Nikola Tesla");
+        profile.addAttribute("email", "tesla@example.com");
+        profile.addAttribute("department", "engineering");
+        SamlLoginRecord loginRecord = new SamlAttributeExtractionPlan(samlSecurity).extract(profile);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<Boolean>> updates = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                updates.add(() -> samlSecurity.updateUser(user, loginRecord));
+            }
+            int modified = 0;
+            for (Future<Boolean> update : executor.invokeAll(updates)) {
+                modified += update.get() ? 1 : 0;
+            }
+            // the first update modifies the user, the others find it up to date
+            assertEquals(1, modified);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("Nikola Tesla", user.getFullName());
+        assertEquals(1, user.getProperty(SamlCustomProperty.class).getAttributes().size());
+    }
+}
@@ -0,0 +1,132 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.Page;
+import org.htmlunit.WebRequest;
+import org.jenkinsci.plugins.saml.conf.Attribute;
+import org.jenkinsci.plugins.saml.user.SamlCustomProperty;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import hudson.model.User;
+import hudson.tasks.Mailer;
+import jenkins.model.Jenkins;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the synchronization of the users.
+ */
+public class SamlUserSyncTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private SamlSecurityRealm samlSecurity;
+
+    @Before
+    public void setUp() throws Exception {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        samlSecurity = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "lowercase", SAML2_REDIRECT_BINDING_URI,
+                List.of(new Attribute("department", "Department")));
+        jenkinsRule.jenkins.setSecurityRealm(samlSecurity);
+        jenkinsRule.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.ADMINISTER).everywhere().to("admin")
+                .grant(Jenkins.READ).everywhere().to("reader"));
+    }
+
+    @Test
+    public void sync() throws Exception {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 200; i++) {
+            json.append(i > 0 ? "," : "")
+                .append("{\"uid\":\"User").append(i).append("\",\"displayName\":\"User ").append(i)
+                .append("\",\"email\":[\"\",\"user").append(i).append("@example.com\"],\"department\":\"engineering\"")
+                .append(",\"groups\":[\"group-1\"]}");
+        }
+        json.append(",{\"displayName\":\"No username\"}]");
+
+        SamlUserSync.Result result = sync(json.toString());
+        assertEquals(201, result.getProcessed());
+        assertEquals(200, result.getUpdated());
+        assertEquals(1, result.getFailed());
+
+        User user = User.getById("user42", false);
+        assertNotNull(user);
+        assertEquals("User 42", user.getFullName());
+        assertEquals("user42@example.com", user.getProperty(Mailer.UserProperty.class).getAddress());
+        SamlCustomProperty.Attribute department = user.getProperty(SamlCustomProperty.class).getAttributes().get(0);
+        assertEquals("engineering", department.getValue());
+
+        // the same snapshot again does not modify the users
+        result = sync("{\"uid\":\"user42\",\"displayName\":\"User 42\",\"email\":\"user42@example.com\",\"department\":\"engineering\"}");
+        assertEquals(1, result.getProcessed());
+        assertEquals(0, result.getUpdated());
+        assertEquals(0, result.getFailed());
+    }
+
+    @Test
+    public void syncUsersEndpoint() throws Exception {
+        User.getById("admin", true);
+        User.getById("reader", true);
+        String json = "{\"uid\":\"tesla\",\"displayName\":\"Nikola Tesla\"}";
+        try (JenkinsRule.WebClient wc = jenkinsRule.createWebClient()) {
+            wc.setThrowExceptionOnFailingStatusCode(false);
+            wc.withBasicApiToken("reader");
+            assertEquals(403, wc.getPage(syncRequest(json)).getWebResponse().getStatusCode());
+            assertNull(User.getById("tesla", false));
+
+            wc.withBasicApiToken("admin");
+            Page page = wc.getPage(syncRequest(json));
+            assertEquals(200, page.getWebResponse().getStatusCode());
+            assertThat(page.getWebResponse().getContentAsString(), containsString("processed 1 users, updated 1"));
+            assertEquals("Nikola Tesla", Objects.requireNonNull(User.getById("tesla", false)).getFullName());
+        }
+    }
+
+    private SamlUserSync.Result sync(String json) throws Exception {
+        SamlUserSync sync = new SamlUserSync(samlSecurity, new SamlAttributeExtractionPlan(samlSecurity));
+        return sync.sync(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private WebRequest syncRequest(String json) throws Exception {
+        WebRequest request = new WebRequest(new URL(jenkinsRule.getURL(), "securityRealm/syncUsers"), HttpMethod.POST);
+        request.setAdditionalHeader("Content-Type", "application/json");
+        request.setRequestBody(json);
+        return request;
+    }
+}
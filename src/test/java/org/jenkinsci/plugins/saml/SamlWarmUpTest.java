@@ -0,0 +1,72 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.apache.commons.io.IOUtils;
+import org.htmlunit.Page;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.LoggerRule;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * Test the warm-up of the SAML machinery.
+ */
+public class SamlWarmUpTest {
+
+    @Rule
+    public final JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public final LoggerRule logging = new LoggerRule().record(SamlSPMetadataCache.class, Level.FINE).capture(10);
+
+    @Test
+    public void warmUp() throws Exception {
+        String metadata = IOUtils.toString(
+            Objects.requireNonNull(getClass().getResourceAsStream("OpenSamlWrapperTest/metadataWrapper/metadata.xml")),
+            StandardCharsets.UTF_8);
+        SamlSecurityRealm samlSecurity = new SamlSecurityRealm(new IdpMetadataConfiguration(metadata),
+                "displayName", "groups", 10000,
+                "uid", "email", "/logout", null,
+                null, "none", SAML2_REDIRECT_BINDING_URI,
+                Collections.emptyList());
+        jenkinsRule.jenkins.setSecurityRealm(samlSecurity);
+        SamlSPMetadataCache.invalidate();
+
+        SamlWarmUp.start(samlSecurity).get(2, TimeUnit.MINUTES);
+        assertThat(logging.getMessages(), hasItem("Generating the SP metadata"));
+
+        // the SP metadata endpoint is served without generating the SP metadata again
+        logging.capture(10);
+        try (JenkinsRule.WebClient wc = jenkinsRule.createWebClient()) {
+            Page page = wc.goTo("securityRealm/metadata", "application/samlmetadata+xml");
+            assertThat(page.getWebResponse().getContentAsString(), containsString("<md:SPSSODescriptor"));
+        }
+        assertThat(logging.getMessages(), not(hasItem("Generating the SP metadata")));
+    }
+}
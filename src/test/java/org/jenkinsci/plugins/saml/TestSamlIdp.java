@@ -0,0 +1,442 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.xml.namespace.QName;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.Functions;
+import net.shibboleth.shared.xml.SerializeSupport;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.common.SAMLObjectContentReference;
+import org.opensaml.saml.common.SAMLVersion;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AttributeValue;
+import org.opensaml.saml.saml2.core.Audience;
+import org.opensaml.saml.saml2.core.AudienceRestriction;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Conditions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.NameID;
+import org.opensaml.saml.saml2.core.NameIDType;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.core.Status;
+import org.opensaml.saml.saml2.core.StatusCode;
+import org.opensaml.saml.saml2.core.Subject;
+import org.opensaml.saml.saml2.core.SubjectConfirmation;
+import org.opensaml.saml.saml2.core.SubjectConfirmationData;
+import org.opensaml.saml.saml2.encryption.Encrypter;
+import org.opensaml.security.x509.BasicX509Credential;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
+import org.opensaml.xmlsec.keyinfo.KeyInfoSupport;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+import org.opensaml.xmlsec.signature.support.Signer;
+import org.w3c.dom.Element;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML20P_NS;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML20_NS;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_POST_BINDING_URI;
+import static org.opensaml.saml.common.xml.SAMLConstants.SAML2_REDIRECT_BINDING_URI;
+
+/**
+ * <p>SAML Identity Provider(IdP) that runs in the test JVM, it replaces a real IdP in the integration and load tests.</p>
+ * <p>It serves its metadata on <code>/metadata</code>, shows a login form on <code>/sso</code> for the AuthnRequests
+ * sent with the HTTP-Redirect or HTTP-POST bindings, and answers the login of a configured user with a signed, and
+ * optionally encrypted, SAML Response posted to the Assertion Consumer Service of the SP.
+ * The users have no password. The SAML Responses can also be created without HTTP for the load tests.</p>
+ */
+public class TestSamlIdp implements AutoCloseable {
+    static final String USERNAME_ATTRIBUTE = "uid";
+    static final String DISPLAY_NAME_ATTRIBUTE = "displayName";
+    static final String EMAIL_ATTRIBUTE = "email";
+    static final String GROUPS_ATTRIBUTE = "groups";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final X509Certificate certificate;
+    private final BasicX509Credential credential;
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+    private volatile BasicX509Credential encryptionCredential;
+
+    public TestSamlIdp() throws Exception {
+        OpenSAMLWrapper.initialize();
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        X500Name dn = new X500Name("CN=Test SAML IdP");
+        Instant now = Instant.now();
+        certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(dn,
+                new BigInteger(64, new SecureRandom()), Date.from(now.minus(Duration.ofDays(1))),
+                Date.from(now.plus(Duration.ofDays(365))), dn, keyPair.getPublic())
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+        credential = new BasicX509Credential(certificate, keyPair.getPrivate());
+
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/metadata", exchange -> send(exchange, 200, "application/samlmetadata+xml", getMetadata()));
+        server.createContext("/sso", this::loginForm);
+        server.createContext("/login", this::login);
+        server.start();
+    }
+
+    /**
+     * Add a user that can log in.
+     * @param username user name, it is also the NameID.
+     * @param displayName full name of the user.
+     * @param email email of the user.
+     * @param groups groups of the user.
+     * @return this IdP.
+     */
+    public TestSamlIdp user(String username, String displayName, String email, String... groups) {
+        users.put(username, new User(username, displayName, email, List.of(groups)));
+        return this;
+    }
+
+    /**
+     * Encrypt the assertions for the SP.
+     * @param spCertificate encryption certificate of the SP.
+     * @return this IdP.
+     */
+    public TestSamlIdp encryptFor(X509Certificate spCertificate) {
+        encryptionCredential = new BasicX509Credential(spCertificate);
+        return this;
+    }
+
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    public String getEntityId() {
+        return getMetadataUrl();
+    }
+
+    /**
+     * @return the URL where the IdP metadata is served.
+     */
+    public String getMetadataUrl() {
+        return getUrl() + "/metadata";
+    }
+
+    /**
+     * @return the IdP metadata.
+     */
+    public String getMetadata() {
+        String sso = getUrl() + "/sso";
+        return "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\""
+               + " xmlns:ds=\"http://www.w3.org/2000/09/xmldsig#\" entityID=\"" + getEntityId() + "\">"
+               + "<md:IDPSSODescriptor WantAuthnRequestsSigned=\"false\""
+               + " protocolSupportEnumeration=\"urn:oasis:names:tc:SAML:2.0:protocol\">"
+               + "<md:KeyDescriptor use=\"signing\"><ds:KeyInfo><ds:X509Data><ds:X509Certificate>"
+               + encode(certificate) + "</ds:X509Certificate></ds:X509Data></ds:KeyInfo></md:KeyDescriptor>"
+               + "<md:NameIDFormat>" + NameIDType.UNSPECIFIED + "</md:NameIDFormat>"
+               + "<md:SingleSignOnService Binding=\"" + SAML2_REDIRECT_BINDING_URI + "\" Location=\"" + sso + "\"/>"
+               + "<md:SingleSignOnService Binding=\"" + SAML2_POST_BINDING_URI + "\" Location=\"" + sso + "\"/>"
+               + "</md:IDPSSODescriptor></md:EntityDescriptor>";
+    }
+
+    /**
+     * Create the SAML Response of a login.
+     * @param username user that logs in, it has to be configured.
+     * @param inResponseTo ID of the AuthnRequest, null for an IdP initiated login.
+     * @param acs URL of the Assertion Consumer Service of the SP.
+     * @param audience entity ID of the SP.
+     * @return the SAML Response encoded in base64, as the HTTP-POST binding sends it.
+     * @throws Exception if it is not possible to sign or encrypt the assertion.
+     */
+    public String createSamlResponse(String username, String inResponseTo, String acs, String audience)
+            throws Exception {
+        User user = users.get(username);
+        if (user == null) {
+            throw new IllegalArgumentException("Unknown user " + username);
+        }
+        Instant now = Instant.now();
+
+        Assertion assertion = build(Assertion.DEFAULT_ELEMENT_NAME);
+        assertion.setID("_" + UUID.randomUUID());
+        assertion.setIssueInstant(now);
+        assertion.setVersion(SAMLVersion.VERSION_20);
+        assertion.setIssuer(issuer());
+
+        NameID nameID = build(NameID.DEFAULT_ELEMENT_NAME);
+        nameID.setFormat(NameIDType.UNSPECIFIED);
+        nameID.setValue(user.username);
+        SubjectConfirmationData confirmationData = build(SubjectConfirmationData.DEFAULT_ELEMENT_NAME);
+        confirmationData.setInResponseTo(inResponseTo);
+        confirmationData.setRecipient(acs);
+        confirmationData.setNotOnOrAfter(now.plus(Duration.ofMinutes(5)));
+        SubjectConfirmation confirmation = build(SubjectConfirmation.DEFAULT_ELEMENT_NAME);
+        confirmation.setMethod(SubjectConfirmation.METHOD_BEARER);
+        confirmation.setSubjectConfirmationData(confirmationData);
+        Subject subject = build(Subject.DEFAULT_ELEMENT_NAME);
+        subject.setNameID(nameID);
+        subject.getSubjectConfirmations().add(confirmation);
+        assertion.setSubject(subject);
+
+        Audience audienceElement = build(Audience.DEFAULT_ELEMENT_NAME);
+        audienceElement.setURI(audience);
+        AudienceRestriction audienceRestriction = build(AudienceRestriction.DEFAULT_ELEMENT_NAME);
+        audienceRestriction.getAudiences().add(audienceElement);
+        Conditions conditions = build(Conditions.DEFAULT_ELEMENT_NAME);
+        conditions.setNotBefore(now.minus(Duration.ofMinutes(1)));
+        conditions.setNotOnOrAfter(now.plus(Duration.ofMinutes(5)));
+        conditions.getAudienceRestrictions().add(audienceRestriction);
+        assertion.setConditions(conditions);
+
+        AuthnContextClassRef classRef = build(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+        classRef.setURI(AuthnContext.PASSWORD_AUTHN_CTX);
+        AuthnContext authnContext = build(AuthnContext.DEFAULT_ELEMENT_NAME);
+        authnContext.setAuthnContextClassRef(classRef);
+        AuthnStatement authnStatement = build(AuthnStatement.DEFAULT_ELEMENT_NAME);
+        authnStatement.setAuthnInstant(now);
+        authnStatement.setSessionIndex("_" + UUID.randomUUID());
+        authnStatement.setAuthnContext(authnContext);
+        assertion.getAuthnStatements().add(authnStatement);
+
+        AttributeStatement attributes = build(AttributeStatement.DEFAULT_ELEMENT_NAME);
+        attributes.getAttributes().add(attribute(USERNAME_ATTRIBUTE, List.of(user.username)));
+        attributes.getAttributes().add(attribute(DISPLAY_NAME_ATTRIBUTE, List.of(user.displayName)));
+        attributes.getAttributes().add(attribute(EMAIL_ATTRIBUTE, List.of(user.email)));
+        attributes.getAttributes().add(attribute(GROUPS_ATTRIBUTE, user.groups));
+        assertion.getAttributeStatements().add(attributes);
+
+        sign(assertion);
+
+        Response response = build(Response.DEFAULT_ELEMENT_NAME);
+        response.setID("_" + UUID.randomUUID());
+        response.setIssueInstant(now);
+        response.setVersion(SAMLVersion.VERSION_20);
+        response.setDestination(acs);
+        response.setInResponseTo(inResponseTo);
+        response.setIssuer(issuer());
+        StatusCode statusCode = build(StatusCode.DEFAULT_ELEMENT_NAME);
+        statusCode.setValue(StatusCode.SUCCESS);
+        Status status = build(Status.DEFAULT_ELEMENT_NAME);
+        status.setStatusCode(statusCode);
+        response.setStatus(status);
+
+        BasicX509Credential encryption = encryptionCredential;
+        if (encryption != null) {
+            DataEncryptionParameters dataParameters = new DataEncryptionParameters();
+            dataParameters.setAlgorithm(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128_GCM);
+            KeyEncryptionParameters keyParameters = new KeyEncryptionParameters();
+            keyParameters.setEncryptionCredential(encryption);
+            keyParameters.setAlgorithm(EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP);
+            Encrypter encrypter = new Encrypter(dataParameters, keyParameters);
+            encrypter.setKeyPlacement(Encrypter.KeyPlacement.INLINE);
+            response.getEncryptedAssertions().add(encrypter.encrypt(assertion));
+        } else {
+            response.getAssertions().add(assertion);
+        }
+
+        String xml = SerializeSupport.nodeToString(XMLObjectSupport.marshall(response));
+        return Base64.getEncoder().encodeToString(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Issuer issuer() {
+        Issuer issuer = build(Issuer.DEFAULT_ELEMENT_NAME);
+        issuer.setValue(getEntityId());
+        return issuer;
+    }
+
+    private static Attribute attribute(String name, List<String> values) {
+        Attribute attribute = build(Attribute.DEFAULT_ELEMENT_NAME);
+        attribute.setName(name);
+        attribute.setNameFormat(Attribute.BASIC);
+        for (String value : values) {
+            XSString xsValue = (XSString) XMLObjectProviderRegistrySupport.getBuilderFactory()
+                    .<XSString>ensureBuilder(XSString.TYPE_NAME)
+                    .buildObject(AttributeValue.DEFAULT_ELEMENT_NAME, XSString.TYPE_NAME);
+            xsValue.setValue(value);
+            attribute.getAttributeValues().add(xsValue);
+        }
+        return attribute;
+    }
+
+    private void sign(Assertion assertion) throws Exception {
+        KeyInfo keyInfo = build(KeyInfo.DEFAULT_ELEMENT_NAME);
+        KeyInfoSupport.addCertificate(keyInfo, certificate);
+        Signature signature = build(Signature.DEFAULT_ELEMENT_NAME);
+        signature.setSigningCredential(credential);
+        signature.setSignatureAlgorithm(SignatureConstants.ALGO_ID_SIGNATURE_RSA_SHA256);
+        signature.setCanonicalizationAlgorithm(SignatureConstants.ALGO_ID_C14N_EXCL_OMIT_COMMENTS);
+        signature.setKeyInfo(keyInfo);
+        assertion.setSignature(signature);
+        ((SAMLObjectContentReference) signature.getContentReferences().get(0))
+                .setDigestAlgorithm(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+        XMLObjectSupport.marshall(assertion);
+        Signer.signObject(signature);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends XMLObject> T build(QName name) {
+        return (T) XMLObjectSupport.buildXMLObject(name);
+    }
+
+    private void loginForm(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parameters(exchange);
+        String binding = "GET".equals(exchange.getRequestMethod()) ? SAML2_REDIRECT_BINDING_URI : SAML2_POST_BINDING_URI;
+        send(exchange, 200, "text/html;charset=UTF-8", "<html><body><form id=\"login\" name=\"login\" method=\"post\" action=\"/login\">"
+                + "<input type=\"text\" name=\"username\" id=\"username\">"
+                + hidden("SAMLRequest", parameters.get("SAMLRequest"))
+                + hidden("RelayState", parameters.get("RelayState"))
+                + hidden("binding", binding)
+                + "<input type=\"submit\" id=\"submit\" value=\"Login\"></form></body></html>");
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = parameters(exchange);
+        String username = parameters.get("username");
+        if (username == null || !users.containsKey(username)) {
+            send(exchange, 401, "text/html;charset=UTF-8", "<html><body>Unknown user</body></html>");
+            return;
+        }
+        try {
+            Element authnRequest = decodeAuthnRequest(parameters.get("SAMLRequest"), parameters.get("binding"));
+            String acs = authnRequest.getAttribute("AssertionConsumerServiceURL");
+            String audience = authnRequest.getElementsByTagNameNS(SAML20_NS, "Issuer").item(0).getTextContent().trim();
+            String samlResponse = createSamlResponse(username, authnRequest.getAttribute("ID"), acs, audience);
+            send(exchange, 200, "text/html;charset=UTF-8", "<html><body><form id=\"response\" method=\"post\" action=\""
+                    + Functions.htmlAttributeEscape(acs) + "\">"
+                    + hidden("SAMLResponse", samlResponse)
+                    + hidden("RelayState", parameters.get("RelayState"))
+                    + "<input type=\"submit\" id=\"continue\" value=\"Continue\"></form></body></html>");
+        } catch (Exception e) {
+            send(exchange, 500, "text/plain;charset=UTF-8", e.toString());
+        }
+    }
+
+    private static Element decodeAuthnRequest(String samlRequest, String binding) throws Exception {
+        byte[] decoded = Base64.getMimeDecoder().decode(samlRequest);
+        InputStream in = new ByteArrayInputStream(decoded);
+        if (SAML2_REDIRECT_BINDING_URI.equals(binding)) {
+            in = new InflaterInputStream(in, new Inflater(true));
+        }
+        Element root = SamlParserPool.parse(in).getDocumentElement();
+        if (!SAML20P_NS.equals(root.getNamespaceURI()) || !"AuthnRequest".equals(root.getLocalName())) {
+            throw new IllegalArgumentException("Not an AuthnRequest " + root.getLocalName());
+        }
+        return root;
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        if ("POST".equals(exchange.getRequestMethod())) {
+            try (InputStream in = exchange.getRequestBody()) {
+                query = IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+        Map<String, String> parameters = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                                   URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String hidden(String name, String value) {
+        if (value == null) {
+            return "";
+        }
+        return "<input type=\"hidden\" name=\"" + name + "\" value=\"" + Functions.htmlAttributeEscape(value) + "\">";
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String encode(X509Certificate certificate) {
+        try {
+            return Base64.getEncoder().encodeToString(certificate.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static final class User {
+        private final String username;
+        private final String displayName;
+        private final String email;
+        private final List<String> groups;
+
+        private User(String username, String displayName, String email, List<String> groups) {
+            this.username = username;
+            this.displayName = displayName;
+            this.email = email;
+            this.groups = groups;
+        }
+    }
+}
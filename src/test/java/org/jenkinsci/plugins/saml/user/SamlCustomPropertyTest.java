@@ -0,0 +1,73 @@
+/* Licensed to Jenkins CI under one or more contributor license
+agreements.  See the NOTICE file distributed with this work
+for additional information regarding copyright ownership.
+Jenkins CI licenses this file to you under the Apache License,
+Version 2.0 (the "License"); you may not use this file except
+in compliance with the License.  You may obtain a copy of the
+License at
+
+  http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing,
+software distributed under the License is distributed on an
+"AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+KIND, either express or implied.  See the License for the
+specific language governing permissions and limitations
+under the License. */
+
+package org.jenkinsci.plugins.saml.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the update of the SAML custom attributes.
+ */
+public class SamlCustomPropertyTest {
+
+    @Test
+    public void updateAttribute() {
+        SamlCustomProperty property = new SamlCustomProperty(new ArrayList<>());
+        assertTrue(property.updateAttribute("department", "Department", "engineering"));
+        assertTrue(property.updateAttribute("location", "Location", "Madrid"));
+        List<SamlCustomProperty.Attribute> before = property.getAttributes();
+
+        assertFalse(property.updateAttribute("department", "Department", "engineering"));
+        assertSame(before, property.getAttributes());
+        assertTrue(property.updateAttribute("department", "Department", "sales"));
+        assertEquals("sales", property.getAttributes().get(0).getValue());
+        // the previous list is not changed, a view that is reading it does not see a half updated list
+        assertEquals("engineering", before.get(0).getValue());
+
+        assertTrue(property.updateAttribute("department", "Team", "sales"));
+        assertEquals("Team", property.getAttributes().get(0).getDisplayName());
+        assertEquals(2, property.getAttributes().size());
+    }
+
+    @Test
+    public void retainAttributes() {
+        SamlCustomProperty property = new SamlCustomProperty(null);
+        assertFalse(property.retainAttributes(Set.of("department")));
+        property.updateAttribute("department", "Department", "engineering");
+        property.updateAttribute("location", "Location", "Madrid");
+
+        assertFalse(property.retainAttributes(Set.of("department", "location")));
+        List<SamlCustomProperty.Attribute> before = property.getAttributes();
+        assertTrue(property.retainAttributes(Set.of("department")));
+        assertEquals(2, before.size());
+        assertEquals(List.of("department"), property.getAttributes().stream().map(SamlCustomProperty.Attribute::getName).toList());
+    }
+
+    @Test
+    public void immutableAttributes() {
+        SamlCustomProperty property = new SamlCustomProperty(List.of(new SamlCustomProperty.Attribute("department", "Department")));
+        assertTrue(property.updateAttribute("department", "Department", "engineering"));
+        assertEquals("engineering", property.getAttributes().get(0).getValue());
+    }
+}